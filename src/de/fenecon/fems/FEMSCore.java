@@ -51,8 +51,16 @@ import org.bulldog.core.gpio.Pwm;
 import org.bulldog.core.platform.Board;
 import org.bulldog.core.platform.Platform;
 
+import de.fenecon.fems.agents.Mailbox;
+import de.fenecon.fems.agents.Message;
+import de.fenecon.fems.agents.MessageBus;
+import de.fenecon.fems.agents.OnlineMonitoring.BandwidthGovernor;
+import de.fenecon.fems.agents.OnlineMonitoring.CircuitBreaker;
+import de.fenecon.fems.agents.OnlineMonitoring.DeltaEncoder;
+import de.fenecon.fems.agents.OnlineMonitoring.Message.DataMessage;
 import de.fenecon.fems.agents.OnlineMonitoring.OnlineMonitoringAgent;
 import de.fenecon.fems.agents.OnlineMonitoring.OnlineMonitoringCacheAgent;
+import de.fenecon.fems.agents.OnlineMonitoring.OnlineMonitoringTransport;
 import de.fenecon.fems.exceptions.FEMSException;
 import de.fenecon.fems.exceptions.IPException;
 import de.fenecon.fems.exceptions.InternetException;
@@ -60,6 +68,7 @@ import de.fenecon.fems.exceptions.RS485Exception;
 import de.fenecon.fems.tools.FEMSIO;
 import de.fenecon.fems.tools.FEMSIO.UserLED;
 import de.fenecon.fems.tools.FEMSYaler;
+import de.fenecon.fems.tools.JSONRPC2RequestCache;
 
 public class FEMSCore {
 	public final static OnlineMonitoringCacheAgent ONLINE_MONITORING_CACHE_AGENT = 
@@ -68,14 +77,15 @@ public class FEMSCore {
 		new OnlineMonitoringAgent("Online-Monitoring", ONLINE_MONITORING_CACHE_AGENT);
 	
 	private final static SimpleDateFormat dateFormat = new SimpleDateFormat("dd.MM.yyyy");
+	private final static int DEFAULT_SHUTDOWN_TIMEOUT = 10000; // ms
 	
 	private static String apikey;
 	private static String ess;
 	private static boolean debug;
+	private static Properties properties = new Properties();
 	
 	public static void main(String[] args) {
 		// read FEMS properties from /etc/fems
-		Properties properties = new Properties();
 		BufferedInputStream stream = null;
 		try {
 			stream = new BufferedInputStream(new FileInputStream("/etc/fems"));
@@ -135,6 +145,36 @@ public class FEMSCore {
 		}
 	}
 
+	/**
+	 * Read an integer from FEMS properties
+	 * @param key
+	 * @param defaultValue value if the property is missing or invalid
+	 * @return
+	 */
+	private static int getIntProperty(String key, int defaultValue) {
+		try {
+			return Integer.parseInt(properties.getProperty(key, String.valueOf(defaultValue)).trim());
+		} catch (NumberFormatException e) {
+			logError("Invalid value for " + key + ": " + properties.getProperty(key));
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Read a long from FEMS properties
+	 * @param key
+	 * @param defaultValue value if the property is missing or invalid
+	 * @return
+	 */
+	private static long getLongProperty(String key, long defaultValue) {
+		try {
+			return Long.parseLong(properties.getProperty(key, String.valueOf(defaultValue)).trim());
+		} catch (NumberFormatException e) {
+			logError("Invalid value for " + key + ": " + properties.getProperty(key));
+			return defaultValue;
+		}
+	}
+
 	/**
 	 * Show all commandline options
 	 * @param options
@@ -439,9 +479,48 @@ public class FEMSCore {
 				logError("Apikey is not available");
 			} else {
 				// start Agents
+				CircuitBreaker.getCircuitBreaker().configure(
+						getIntProperty("retry.basedelay", (int)CircuitBreaker.DEFAULT_BASE_DELAY),
+						getIntProperty("retry.maxdelay", (int)CircuitBreaker.DEFAULT_MAX_DELAY),
+						getIntProperty("retry.threshold", CircuitBreaker.DEFAULT_FAILURE_THRESHOLD));
+				OnlineMonitoringTransport.getTransport().setTimeouts(
+						getIntProperty("http.connecttimeout", OnlineMonitoringTransport.DEFAULT_CONNECT_TIMEOUT),
+						getIntProperty("http.readtimeout", OnlineMonitoringTransport.DEFAULT_READ_TIMEOUT));
+				OnlineMonitoringTransport.getTransport().setCompression(
+						Boolean.parseBoolean(properties.getProperty("http.compression", "true")),
+						getIntProperty("http.compressionthreshold", OnlineMonitoringTransport.DEFAULT_COMPRESSION_THRESHOLD));
+				BandwidthGovernor.getBandwidthGovernor().configure(
+						getLongProperty("bandwidth.hourly", 0),
+						getLongProperty("bandwidth.monthly", 0));
 				ONLINE_MONITORING_AGENT.setApikey(apikey);
+				ONLINE_MONITORING_AGENT.setBatchLimits(
+						getIntProperty("batch.maxcount", OnlineMonitoringAgent.DEFAULT_BATCH_MAX_COUNT),
+						getIntProperty("batch.maxbytes", OnlineMonitoringAgent.DEFAULT_BATCH_MAX_BYTES),
+						getIntProperty("batch.latency", (int)OnlineMonitoringAgent.DEFAULT_BATCH_LATENCY));
+				ONLINE_MONITORING_AGENT.setDeltaEncoding(
+						Boolean.parseBoolean(properties.getProperty("delta.enabled", "false")),
+						getIntProperty("delta.keyframe", DeltaEncoder.DEFAULT_KEYFRAME_INTERVAL));
+				ONLINE_MONITORING_AGENT.setMailbox(
+						getIntProperty("mailbox.capacity", OnlineMonitoringAgent.DEFAULT_MAILBOX_CAPACITY),
+						Mailbox.OverflowPolicy.SPILL);
+				ONLINE_MONITORING_AGENT.setInFlightWindow(
+						getIntProperty("http.inflight", OnlineMonitoringAgent.DEFAULT_IN_FLIGHT_WINDOW));
+				ONLINE_MONITORING_AGENT.setMetricsInterval(
+						getIntProperty("metrics.interval", (int)OnlineMonitoringAgent.DEFAULT_METRICS_INTERVAL));
 				ONLINE_MONITORING_AGENT.start();
+				MessageBus.getMessageBus().publish(new Message.AddListener(ONLINE_MONITORING_AGENT, DataMessage.class));
 				ONLINE_MONITORING_CACHE_AGENT.setApikey(apikey);
+				ONLINE_MONITORING_CACHE_AGENT.setRollup(
+						getLongProperty("rollup.age", 0) * 1000,
+						getLongProperty("rollup.interval", 15 * 60) * 1000);
+				ONLINE_MONITORING_CACHE_AGENT.setRetention(
+						getLongProperty("cache.maxbytes", 0),
+						getLongProperty("cache.maxage", 0) * 1000,
+						getLongProperty("cache.minfree", JSONRPC2RequestCache.DEFAULT_MIN_FREE_SPACE));
+				ONLINE_MONITORING_CACHE_AGENT.setMemoryLimits(
+						getIntProperty("cache.memory.maxcount", JSONRPC2RequestCache.DEFAULT_MEMORY_MAX_COUNT),
+						getLongProperty("cache.memory.maxbytes", JSONRPC2RequestCache.DEFAULT_MEMORY_MAX_BYTES),
+						getLongProperty("cache.memory.maxage", JSONRPC2RequestCache.DEFAULT_MEMORY_MAX_AGE / 1000) * 1000);
 				ONLINE_MONITORING_CACHE_AGENT.start();
 				
 				ONLINE_MONITORING_AGENT.sendSystemMessage(logText);
@@ -469,10 +548,17 @@ public class FEMSCore {
 			ONLINE_MONITORING_AGENT.sendSystemMessage(logText); // try to send log
 		}
 
+		// stop agents: send what can be sent in time, cache the rest
+		long deadline = System.currentTimeMillis() + getIntProperty("shutdown.timeout", DEFAULT_SHUTDOWN_TIMEOUT);
 		try {
-			Thread.sleep(2000);  // give the agents some time to try sending
+			if(!ONLINE_MONITORING_AGENT.shutdown(deadline)) {
+				logError("OnlineMonitoringAgent did not stop in time");
+			}
+			if(!ONLINE_MONITORING_CACHE_AGENT.shutdown(deadline)) {
+				logError("OnlineMonitoringCacheAgent did not stop in time");
+			}
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			logError("Interrupted while stopping agents: " + e.getMessage());
 		}
 		
 		// Exit
@@ -8,8 +8,15 @@
  */
 package de.fenecon.fems.agents;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.ObjectName;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,21 +24,63 @@ import org.slf4j.LoggerFactory;
 /**
  * "Agent" is the base entity for all agents.
  * 
+ * Agents do not own a thread. Whenever the lock is released, the agent is
+ * scheduled on the shared {@link AgentRuntime}, which calls foreverLoop() once
+ * per permit. An agent never runs on two threads at the same time.
+ * 
+ * Agents either override foreverLoop() and poll their messages themselves, or
+ * override onMessages() to get all waiting messages (up to the batch limit) per
+ * wake-up at once. Instead of sleeping, agents schedule a message to themselves
+ * on the {@link TimingWheel}.
+ * 
  * @author Stefan Feilmeier
  */
-public abstract class Agent extends Thread {
+public abstract class Agent {
 	private static Logger logger = LoggerFactory.getLogger(Agent.class);
-	protected final ConcurrentLinkedQueue<Message> messages = new ConcurrentLinkedQueue<>();
-	protected final Semaphore lock = new Semaphore(0);
+	private final static int MAX_LOOPS_PER_SLICE = 16; // give other agents a chance
+	public final static int DEFAULT_BATCH_LIMIT = 64;
+	private final static ThreadLocal<Agent> currentAgent = new ThreadLocal<Agent>();
+	
+	protected final Mailbox messages = new Mailbox();
+	@SuppressWarnings("serial")
+	protected final Semaphore lock = new Semaphore(0) {
+		@Override
+		public void release() {
+			super.release();
+			schedule();
+		}
+		@Override
+		public void release(int permits) {
+			super.release(permits);
+			schedule();
+		}
+	};
+	
+	private final AgentRuntime runtime = AgentRuntime.getAgentRuntime();
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	private volatile boolean started = false;
+	private volatile boolean shuttingDown = false;
+	private volatile long shutdownDeadline = 0;
+	private final CountDownLatch terminated = new CountDownLatch(1);
+	private volatile String name;
+	private volatile int batchLimit = DEFAULT_BATCH_LIMIT;
+	private final AgentMetrics metrics = new AgentMetrics(this);
+	private final Runnable slice = new Runnable() {
+		@Override
+		public void run() {
+			runSlice();
+		}
+	};
 
 	/**
-	 * Create and start a new agent
+	 * Create a new agent
 	 */
 	public Agent() {
+		this.name = getClass().getSimpleName();
 	}
 	
 	/**
-	 * Create and start a new agent
+	 * Create a new agent
 	 * 
 	 * @param agentName Name of the agent
 	 */
@@ -40,37 +89,266 @@ public abstract class Agent extends Thread {
 		this.setName(name);
 	}
 	
+	/**
+	 * Get the agent that is running on the current thread
+	 * 
+	 * @return agent or null
+	 */
+	public static Agent getCurrentAgent() {
+		return currentAgent.get();
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public void setName(String name) {
+		this.name = name;
+	}
+	
+	/**
+	 * Start the agent on the agent runtime
+	 */
+	public void start() {
+		started = true;
+		runtime.register(this);
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, 
+					new ObjectName("de.fenecon.fems:type=Agent,name=" + ObjectName.quote(name)));
+		} catch (Exception e) {
+			logger.warn("Unable to register metrics of " + name + " for JMX: " + e.getMessage());
+		}
+		runtime.execute(new Runnable() {
+			@Override
+			public void run() {
+				currentAgent.set(Agent.this);
+				try {
+					onStart();
+				} finally {
+					currentAgent.remove();
+				}
+				schedule();
+			}
+		});
+	}
+	
+	/**
+	 * Called once on the agent runtime when the agent is started
+	 */
+	protected void onStart() {
+	}
+	
+	/**
+	 * Shut the agent down: no more messages are accepted, the waiting messages
+	 * are handled and then onShutdown() is called. Returns as soon as the agent
+	 * is done or the deadline has passed.
+	 * 
+	 * @param deadline time in ms (like System.currentTimeMillis()) by which the agent has to be done
+	 * @return true if the agent was shut down in time
+	 * @throws InterruptedException
+	 */
+	public boolean shutdown(long deadline) throws InterruptedException {
+		if(!started) return true;
+		shutdownDeadline = deadline;
+		shuttingDown = true;
+		lock.release(); // wake up even without messages
+		return terminated.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * @return true if shutdown() was called; the agent does not accept messages anymore
+	 */
+	public boolean isShuttingDown() {
+		return shuttingDown;
+	}
+	
+	/**
+	 * Called once on the agent runtime after shutdown() was called and all
+	 * waiting messages were handled. Agents finish or persist their work here.
+	 * 
+	 * @param deadline time in ms by which the agent has to be done
+	 * @throws InterruptedException
+	 */
+	protected void onShutdown(long deadline) throws InterruptedException {
+	}
+	
+	/**
+	 * Limit the mailbox of this agent
+	 * 
+	 * @param capacity maximum number of waiting messages
+	 * @param policy what to do with messages if the mailbox is full
+	 */
+	public void setMailbox(int capacity, Mailbox.OverflowPolicy policy) {
+		messages.configure(capacity, policy);
+	}
+	
+	/**
+	 * Set the maximum number of messages that are passed to onMessages() at once
+	 * 
+	 * @param batchLimit
+	 */
+	public void setBatchLimit(int batchLimit) {
+		this.batchLimit = Math.max(1, batchLimit);
+	}
+	
+	/**
+	 * Get the runtime metrics of this agent
+	 * 
+	 * @return
+	 */
+	public AgentMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Get the mailbox, e.g. to read its depth and drop counters
+	 * 
+	 * @return
+	 */
+	public Mailbox getMailbox() {
+		return messages;
+	}
+	
 	/**
 	 * Send a message to this agent
-	 * (This method is thread-safe)
+	 * (This method is thread-safe; it may block if the mailbox is full)
+	 * 
+	 * @param message
+	 * @return true if the message was accepted, false if it was dropped or spilled
+	 */
+	protected boolean message(Message message) {
+		if(shuttingDown) {
+			return false;
+		}
+		if(messages.offer(message)) {
+			metrics.recordMessage();
+			lock.release();
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Send a message to this agent without blocking, e.g. from a timer. If
+	 * the mailbox is full, the message is refused instead of applying the
+	 * overflow policy.
 	 * 
 	 * @param message
+	 * @return true if the message was accepted
 	 */
-	protected void message(Message message) {
-		messages.add(message);
+	boolean tryMessage(Message message) {
+		if(shuttingDown || !messages.tryOffer(message)) {
+			return false;
+		}
+		metrics.recordMessage();
 		lock.release();
+		return true;
+	}
+	
+	/**
+	 * Make sure a slice of this agent is queued on the runtime, if it has work
+	 */
+	private void schedule() {
+		if(started && lock.availablePermits() > 0 && scheduled.compareAndSet(false, true)) {
+			runtime.execute(slice);
+		}
 	}
 	
 	/**
-	 * The main execution control of the agent 
+	 * The main execution control of the agent: call foreverLoop() for the
+	 * available permits, then give the thread back to the runtime
 	 */
-	@Override
-	public void run() {
+	private void runSlice() {
+		Thread thread = Thread.currentThread();
+		String threadName = thread.getName();
+		thread.setName(name);
+		currentAgent.set(this);
 		try {
-			while(true) {
-				lock.acquire();
-				foreverLoop();
+			for(int i=0; i<MAX_LOOPS_PER_SLICE && lock.tryAcquire(); i++) {
+				if(terminated.getCount() == 0) {
+					continue; // already shut down; discard wake-ups
+				}
+				if(shuttingDown && messages.isEmpty()) {
+					try {
+						onShutdown(shutdownDeadline);
+					} finally {
+						terminated.countDown();
+					}
+					continue;
+				}
+				long start = System.nanoTime();
+				try {
+					foreverLoop();
+				} finally {
+					metrics.recordLoop(System.nanoTime() - start);
+				}
 			}
 		} catch (InterruptedException e) { 
-			e.printStackTrace();
+			logger.warn("ForeverLoop of " + name + " was interrupted");
+		} catch (RuntimeException e) {
+			logger.error("Error in foreverLoop of " + name + ": " + e.getMessage(), e);
+		} finally {
+			currentAgent.remove();
+			thread.setName(threadName);
+			scheduled.set(false);
 		}
-		logger.info("ForeverLoop ended");
+		schedule(); // permits that arrived in the meantime
 	}
 	
 	/**
-	 * This method is called over and over again after lock is released
+	 * Send a message to this agent after a delay
 	 * 
+	 * @param message
+	 * @param delay delay in ms
+	 * @return handle to cancel the timer
+	 */
+	protected TimingWheel.Timeout scheduleMessage(Message message, long delay) {
+		return TimingWheel.getTimingWheel().schedule(this, message, delay);
+	}
+	
+	/**
+	 * Send a message to this agent periodically
+	 * 
+	 * @param message
+	 * @param initialDelay delay in ms before the first message
+	 * @param period time in ms between messages
+	 * @return handle to cancel the timer
+	 */
+	protected TimingWheel.Timeout scheduleMessage(Message message, long initialDelay, long period) {
+		return TimingWheel.getTimingWheel().schedulePeriodic(this, message, initialDelay, period);
+	}
+	
+	/**
+	 * Sleep without blocking the agent runtime for other agents
+	 * 
+	 * @param millis
 	 * @throws InterruptedException
 	 */
-	public abstract void foreverLoop() throws InterruptedException;
+	protected void sleep(long millis) throws InterruptedException {
+		AgentRuntime.sleep(millis);
+	}
+	
+	/**
+	 * This method is called over and over again after lock is released.
+	 * By default it drains up to batchLimit messages and passes them to onMessages().
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void foreverLoop() throws InterruptedException {
+		List<Message> batch = new ArrayList<Message>();
+		messages.drainTo(batch, batchLimit);
+		// one permit per message was released; the first one started this loop
+		for(int i=1; i<batch.size() && lock.tryAcquire(); i++);
+		onMessages(batch);
+	}
+	
+	/**
+	 * Handle a batch of messages in the order they were received. The batch is
+	 * empty if the agent was woken up without a new message.
+	 * 
+	 * @param batch
+	 * @throws InterruptedException
+	 */
+	protected void onMessages(List<Message> batch) throws InterruptedException {
+	}
 }
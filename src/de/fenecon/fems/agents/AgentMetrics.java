@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2015 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package de.fenecon.fems.agents;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runtime metrics of one agent: mailbox depth, message rate, foreverLoop()
+ * durations and busy/idle time.
+ * 
+ * Loop durations are recorded in a {@link Histogram} in ns. The message rate
+ * is updated by the {@link AgentRuntime} on a fixed tick, so reading it (e.g.
+ * via JMX) does not change it.
+ * 
+ * @author Stefan Feilmeier
+ */
+public class AgentMetrics implements AgentMetricsMBean {
+	private final Agent agent;
+	private final long created = System.nanoTime();
+	private final AtomicLong messages = new AtomicLong();
+	private final Histogram loopNanos = new Histogram();
+	
+	private long rateMessages = 0;
+	private long rateTime = created;
+	private volatile double messagesPerSecond = 0;
+	
+	AgentMetrics(Agent agent) {
+		this.agent = agent;
+	}
+	
+	/** A message was accepted by the mailbox */
+	void recordMessage() {
+		messages.incrementAndGet();
+	}
+	
+	/** Recalculate the message rate since the previous tick */
+	synchronized void updateRate() {
+		long now = System.nanoTime();
+		long count = messages.get();
+		if(now > rateTime) {
+			messagesPerSecond = (count - rateMessages) * 1e9 / (now - rateTime);
+		}
+		rateMessages = count;
+		rateTime = now;
+	}
+	
+	/** foreverLoop() took the given time */
+	void recordLoop(long nanos) {
+		loopNanos.record(nanos);
+	}
+	
+	@Override
+	public String getName() {
+		return agent.getName();
+	}
+	
+	@Override
+	public int getMailboxDepth() {
+		return agent.getMailbox().size();
+	}
+	
+	@Override
+	public int getMaxMailboxDepth() {
+		return agent.getMailbox().getMaxDepth();
+	}
+	
+	@Override
+	public long getDroppedMessages() {
+		return agent.getMailbox().getDroppedCount();
+	}
+	
+	@Override
+	public long getSpilledMessages() {
+		return agent.getMailbox().getSpilledCount();
+	}
+	
+	@Override
+	public long getMessages() {
+		return messages.get();
+	}
+	
+	/**
+	 * Message rate during the last tick of the runtime (see {@link AgentRuntime#RATE_INTERVAL})
+	 */
+	@Override
+	public double getMessagesPerSecond() {
+		return messagesPerSecond;
+	}
+	
+	@Override
+	public long getLoops() {
+		return loopNanos.getCount();
+	}
+	
+	/**
+	 * Estimate a percentile of foreverLoop() durations
+	 * 
+	 * @param percentile 0..100
+	 * @return duration in ms
+	 */
+	public double getLoopPercentileMillis(double percentile) {
+		return loopNanos.getPercentile(percentile) / 1e6;
+	}
+	
+	@Override
+	public double getLoopMedianMillis() {
+		return getLoopPercentileMillis(50);
+	}
+	
+	@Override
+	public double getLoop99thPercentileMillis() {
+		return getLoopPercentileMillis(99);
+	}
+	
+	@Override
+	public double getMaxLoopMillis() {
+		return loopNanos.getMax() / 1e6;
+	}
+	
+	@Override
+	public long getBusyMillis() {
+		return loopNanos.getSum() / 1000000;
+	}
+	
+	@Override
+	public long getIdleMillis() {
+		return Math.max(0, (System.nanoTime() - created) / 1000000 - getBusyMillis());
+	}
+	
+	@Override
+	public String toString() {
+		long busy = getBusyMillis();
+		long total = busy + getIdleMillis();
+		return String.format("%s: mailbox %d (max %d, dropped %d, spilled %d), %.2f msg/s, "
+				+ "loop p50 %.3f ms, p99 %.3f ms, max %.3f ms, busy %.1f %%",
+				getName(), getMailboxDepth(), getMaxMailboxDepth(), getDroppedMessages(), getSpilledMessages(),
+				getMessagesPerSecond(), getLoopMedianMillis(), getLoop99thPercentileMillis(), getMaxLoopMillis(),
+				total > 0 ? busy * 100. / total : 0.);
+	}
+}
@@ -0,0 +1,30 @@
+/**
+ * Copyright (c) 2015 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package de.fenecon.fems.agents;
+
+/**
+ * JMX view of {@link AgentMetrics}
+ * 
+ * @author Stefan Feilmeier
+ */
+public interface AgentMetricsMBean {
+	public String getName();
+	public int getMailboxDepth();
+	public int getMaxMailboxDepth();
+	public long getDroppedMessages();
+	public long getSpilledMessages();
+	public long getMessages();
+	public double getMessagesPerSecond();
+	public long getLoops();
+	public double getLoopMedianMillis();
+	public double getLoop99thPercentileMillis();
+	public double getMaxLoopMillis();
+	public long getBusyMillis();
+	public long getIdleMillis();
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright (c) 2015 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package de.fenecon.fems.agents;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shared executor that runs all agents as short tasks instead of one thread
+ * per agent. Uses virtual threads if the JVM supports them, otherwise a small
+ * fork-join pool.
+ *
+ * @author Stefan Feilmeier
+ */
+public class AgentRuntime {
+	private static Logger logger = LoggerFactory.getLogger(AgentRuntime.class);
+	
+	public final static long RATE_INTERVAL = 10 * 1000; // ms; tick for the message rates of the agents
+
+	private static AgentRuntime agentRuntime = null;
+
+	public static synchronized AgentRuntime getAgentRuntime() {
+		if(agentRuntime == null) {
+			agentRuntime = new AgentRuntime();
+		}
+		return agentRuntime;
+	}
+
+	private final ExecutorService executor;
+	private final boolean virtualThreads;
+	private final CopyOnWriteArrayList<Agent> agents = new CopyOnWriteArrayList<Agent>();
+
+	private AgentRuntime() {
+		ExecutorService executor = null;
+		try {
+			// Java 21+; looked up by reflection to stay compatible with older JVMs
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			executor = (ExecutorService)method.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			executor = null;
+		}
+		if(executor != null) {
+			virtualThreads = true;
+			logger.info("Running agents on virtual threads");
+		} else {
+			virtualThreads = false;
+			int parallelism = Math.max(2, Runtime.getRuntime().availableProcessors());
+			executor = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory,
+					null, true /* FIFO scheduling */);
+			logger.info("Running agents on a pool of " + parallelism + " threads");
+		}
+		this.executor = executor;
+		TimingWheel.getTimingWheel().schedulePeriodic(new Runnable() {
+			@Override
+			public void run() {
+				for(Agent agent : agents) {
+					agent.getMetrics().updateRate();
+				}
+			}
+		}, RATE_INTERVAL, RATE_INTERVAL);
+	}
+
+	/**
+	 * Run a task of an agent
+	 *
+	 * @param task
+	 */
+	void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	/**
+	 * Remember a started agent
+	 * 
+	 * @param agent
+	 */
+	void register(Agent agent) {
+		agents.addIfAbsent(agent);
+	}
+	
+	/**
+	 * @return all started agents
+	 */
+	public List<Agent> getAgents() {
+		return new ArrayList<Agent>(agents);
+	}
+	
+	/**
+	 * Metrics of all started agents, one line per agent
+	 * 
+	 * @return
+	 */
+	public String getMetricsReport() {
+		StringBuilder report = new StringBuilder();
+		for(Agent agent : agents) {
+			if(report.length() > 0) report.append('\n');
+			report.append(agent.getMetrics());
+		}
+		return report.toString();
+	}
+
+	/**
+	 * @return true if agents run on virtual threads
+	 */
+	public boolean usesVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Sleep without keeping a pool thread from other agents: in a fork-join
+	 * pool a compensating thread is added while sleeping.
+	 *
+	 * @param millis
+	 * @throws InterruptedException
+	 */
+	public static void sleep(final long millis) throws InterruptedException {
+		ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+			private boolean done = false;
+			@Override
+			public boolean block() throws InterruptedException {
+				Thread.sleep(millis);
+				done = true;
+				return true;
+			}
+			@Override
+			public boolean isReleasable() {
+				return done;
+			}
+		});
+	}
+
+	/** Blocking I/O for {@link AgentRuntime#blockingIO(BlockingIO)} */
+	public interface BlockingIO<T> {
+		public T call() throws IOException;
+	}
+
+	/**
+	 * Run blocking I/O, e.g. a request to a server, without keeping a pool
+	 * thread from other agents: in a fork-join pool a compensating thread is
+	 * added meanwhile.
+	 *
+	 * @param io
+	 * @return result of the call
+	 * @throws IOException thrown by the call
+	 * @throws InterruptedException
+	 */
+	public static <T> T blockingIO(final BlockingIO<T> io) throws IOException, InterruptedException {
+		final List<T> result = new ArrayList<T>(1);
+		final IOException[] error = new IOException[1];
+		ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+			private boolean done = false;
+			@Override
+			public boolean block() {
+				try {
+					result.add(io.call());
+				} catch (IOException e) {
+					error[0] = e;
+				}
+				done = true;
+				return true;
+			}
+			@Override
+			public boolean isReleasable() {
+				return done;
+			}
+		});
+		if(error[0] != null) throw error[0];
+		return result.get(0);
+	}
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) 2015 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package de.fenecon.fems.agents;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values in power-of-two buckets. Recording
+ * is a few atomic operations; percentiles are accurate to a factor of two.
+ * 
+ * @author Stefan Feilmeier
+ */
+public class Histogram {
+	private final static int BUCKETS = 64;
+	
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	
+	public void record(long value) {
+		if(value < 0) value = 0;
+		buckets.incrementAndGet(value == 0 ? 0 : 63 - Long.numberOfLeadingZeros(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long max;
+		while(value > (max = this.max.get()) && !this.max.compareAndSet(max, value));
+	}
+	
+	public long getCount() {
+		return count.get();
+	}
+	
+	public long getSum() {
+		return sum.get();
+	}
+	
+	public long getMax() {
+		return max.get();
+	}
+	
+	/**
+	 * Estimate a percentile
+	 * 
+	 * @param percentile 0..100
+	 * @return upper bound of the matching bucket, at most the maximum; 0 if empty
+	 */
+	public long getPercentile(double percentile) {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for(int i=0; i<BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if(total == 0) return 0;
+		long rank = Math.max(1, (long)Math.ceil(total * percentile / 100.));
+		long seen = 0;
+		for(int i=0; i<BUCKETS; i++) {
+			seen += counts[i];
+			if(seen >= rank) {
+				long upper = i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+				return Math.min(upper, getMax());
+			}
+		}
+		return getMax();
+	}
+}
@@ -0,0 +1,360 @@
+/**
+ * Copyright (c) 2015 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package de.fenecon.fems.agents;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded message queue of an agent. If it is full, the overflow policy
+ * decides what happens to a new message.
+ *
+ * Messages can be split into lanes, e.g. by priority. Lanes are drained in
+ * weighted round-robin: per round, each lane hands out up to its weight in
+ * messages, so urgent lanes are served quickly without starving the others.
+ * Within a lane, messages keep their order.
+ *
+ * @author Stefan Feilmeier
+ */
+public class Mailbox {
+	public static enum OverflowPolicy {
+		/** the sender waits until there is space */
+		BLOCK,
+		/** the oldest message is dropped */
+		DROP_OLDEST,
+		/** the new message is dropped */
+		DROP_NEWEST,
+		/** the new message is handed to the spill handler (e.g. written to disk) */
+		SPILL
+	}
+
+	/**
+	 * Takes messages that do not fit into a full mailbox
+	 */
+	public static interface SpillHandler {
+		public void spill(Message message);
+	}
+
+	/**
+	 * Assigns a message to a lane
+	 */
+	public static interface LaneSelector {
+		/** @return index of the lane */
+		public int getLane(Message message);
+	}
+
+	public final static int UNBOUNDED = Integer.MAX_VALUE;
+
+	private ArrayDeque<Message>[] lanes = newLanes(1);
+	private int[] weights = new int[] { 1 };
+	private LaneSelector laneSelector = null;
+	private int size = 0;
+	private int currentLane = 0;
+	private int credit = 1;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notFull = lock.newCondition();
+	private volatile int capacity = UNBOUNDED;
+	private volatile OverflowPolicy policy = OverflowPolicy.BLOCK;
+	private volatile SpillHandler spillHandler = null;
+	private int maxDepth = 0;
+
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong spilled = new AtomicLong();
+
+	/**
+	 * Set capacity and overflow policy
+	 *
+	 * @param capacity maximum number of messages; UNBOUNDED for no limit
+	 * @param policy
+	 */
+	public void configure(int capacity, OverflowPolicy policy) {
+		this.capacity = capacity;
+		this.policy = policy;
+		lock.lock();
+		try {
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Split the mailbox into lanes that are drained in weighted round-robin
+	 *
+	 * @param weights number of messages per round for each lane (at least 1)
+	 * @param laneSelector assigns messages to lanes; an invalid index means the last lane
+	 */
+	public void configureLanes(int[] weights, LaneSelector laneSelector) {
+		lock.lock();
+		try {
+			ArrayDeque<Message> waiting = new ArrayDeque<Message>();
+			Message message;
+			while((message = pollLane()) != null) {
+				waiting.add(message);
+			}
+			this.weights = new int[weights.length];
+			for(int i=0; i<weights.length; i++) {
+				this.weights[i] = Math.max(1, weights[i]);
+			}
+			this.laneSelector = laneSelector;
+			this.lanes = newLanes(weights.length);
+			this.currentLane = 0;
+			this.credit = this.weights[0];
+			for(Message m : waiting) {
+				lanes[selectLane(m)].add(m);
+				size++;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Set the handler for the SPILL policy. Without handler, spilled messages are dropped.
+	 *
+	 * @param spillHandler
+	 */
+	public void setSpillHandler(SpillHandler spillHandler) {
+		this.spillHandler = spillHandler;
+	}
+
+	/**
+	 * Add a message, applying the overflow policy if the mailbox is full
+	 *
+	 * @param message
+	 * @return true if the message was added to the mailbox
+	 */
+	public boolean offer(Message message) {
+		OverflowPolicy policy = this.policy;
+		lock.lock();
+		try {
+			if(size >= capacity) {
+				switch(policy) {
+				case BLOCK:
+					try {
+						// like AgentRuntime.sleep(): the fork-join pool adds a thread while this one waits
+						ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+							@Override
+							public boolean block() throws InterruptedException {
+								while(size >= capacity) {
+									notFull.await();
+								}
+								return true;
+							}
+							@Override
+							public boolean isReleasable() {
+								return size < capacity;
+							}
+						});
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						dropped.incrementAndGet();
+						return false;
+					}
+					break;
+				case DROP_OLDEST:
+					dropOldest();
+					dropped.incrementAndGet();
+					break;
+				case DROP_NEWEST:
+					dropped.incrementAndGet();
+					return false;
+				case SPILL:
+					break;
+				}
+			}
+			if(size < capacity) {
+				enqueue(message);
+				return true;
+			}
+		} finally {
+			lock.unlock();
+		}
+		// SPILL: hand over outside of the lock
+		SpillHandler spillHandler = this.spillHandler;
+		if(spillHandler != null) {
+			spillHandler.spill(message);
+			spilled.incrementAndGet();
+		} else {
+			dropped.incrementAndGet();
+		}
+		return false;
+	}
+
+	/**
+	 * Add a message only if there is space: never blocks and never applies
+	 * the overflow policy
+	 *
+	 * @param message
+	 * @return false if the mailbox is full
+	 */
+	public boolean tryOffer(Message message) {
+		lock.lock();
+		try {
+			if(size >= capacity) return false;
+			enqueue(message);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get and remove the next message: the oldest one of the lane whose turn it is
+	 *
+	 * @return message or null if the mailbox is empty
+	 */
+	public Message poll() {
+		lock.lock();
+		try {
+			Message message = pollLane();
+			if(message != null) {
+				notFull.signal();
+			}
+			return message;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Move up to maxCount messages into a list, in the order of poll()
+	 *
+	 * @param list
+	 * @param maxCount
+	 * @return number of messages that were moved
+	 */
+	public int drainTo(List<Message> list, int maxCount) {
+		lock.lock();
+		try {
+			int count = 0;
+			Message message;
+			while(count < maxCount && (message = pollLane()) != null) {
+				list.add(message);
+				count++;
+			}
+			if(count > 0) {
+				notFull.signalAll();
+			}
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Current number of messages */
+	public int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Current number of messages in a lane */
+	public int size(int lane) {
+		lock.lock();
+		try {
+			return lanes[lane].size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/** Highest number of messages that were waiting at the same time */
+	public int getMaxDepth() {
+		lock.lock();
+		try {
+			return maxDepth;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/** Number of messages that were dropped because the mailbox was full */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/** Number of messages that were handed to the spill handler */
+	public long getSpilledCount() {
+		return spilled.get();
+	}
+
+	private int selectLane(Message message) {
+		if(laneSelector == null) return 0;
+		int lane = laneSelector.getLane(message);
+		return lane >= 0 && lane < lanes.length ? lane : lanes.length - 1;
+	}
+
+	/**
+	 * Add a message to its lane; needs the lock
+	 */
+	private void enqueue(Message message) {
+		lanes[selectLane(message)].add(message);
+		size++;
+		if(size > maxDepth) {
+			maxDepth = size;
+		}
+	}
+
+	/**
+	 * Weighted round-robin; needs the lock
+	 */
+	private Message pollLane() {
+		if(size == 0) return null;
+		while(true) {
+			if(credit > 0 && !lanes[currentLane].isEmpty()) {
+				credit--;
+				size--;
+				return lanes[currentLane].poll();
+			}
+			currentLane = (currentLane + 1) % lanes.length;
+			credit = weights[currentLane];
+		}
+	}
+
+	/**
+	 * Drop the oldest message of the lane with the lowest weight; needs the lock
+	 */
+	private void dropOldest() {
+		int lane = -1;
+		for(int i=0; i<lanes.length; i++) {
+			if(!lanes[i].isEmpty() && (lane < 0 || weights[i] <= weights[lane])) {
+				lane = i;
+			}
+		}
+		if(lane >= 0) {
+			lanes[lane].poll();
+			size--;
+		}
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static ArrayDeque<Message>[] newLanes(int count) {
+		ArrayDeque<Message>[] lanes = new ArrayDeque[count];
+		for(int i=0; i<count; i++) {
+			lanes[i] = new ArrayDeque<Message>();
+		}
+		return lanes;
+	}
+}
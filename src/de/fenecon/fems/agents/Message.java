@@ -4,11 +4,7 @@ public class Message {
 	protected final Agent sender;
 	
 	public Message() {
-		if(Thread.currentThread() instanceof Agent) {
-			sender = (Agent)(Thread.currentThread());
-		} else {
-			sender = null;
-		}
+		sender = Agent.getCurrentAgent();
 	}
 	
 	/** Get the sender agent of the message; null if it was not an agent
@@ -29,13 +25,39 @@ public class Message {
 	
 	/** Specific messages 
 	 */
-	public static class AddListener extends Message {
+	/** Base of AddListener and RemoveListener: a listener agent and a message type */
+	public static abstract class ListenerMessage extends Message {
 		private final Agent listener;
-		public AddListener(Agent listener) {
+		private final Class<? extends Message> type;
+		protected ListenerMessage(Agent listener, Class<? extends Message> type) {
 			this.listener = listener;
+			this.type = type;
 		}
 		public Agent getListener() {
 			return listener;
 		}
+		public Class<? extends Message> getType() {
+			return type;
+		}
+	}
+	
+	/** Subscribe an agent to a message type; publish it on the {@link MessageBus} */
+	public static class AddListener extends ListenerMessage {
+		public AddListener(Agent listener) {
+			this(listener, Message.class);
+		}
+		public AddListener(Agent listener, Class<? extends Message> type) {
+			super(listener, type);
+		}
+	}
+	
+	/** Unsubscribe an agent from a message type; publish it on the {@link MessageBus} */
+	public static class RemoveListener extends ListenerMessage {
+		public RemoveListener(Agent listener) {
+			this(listener, Message.class);
+		}
+		public RemoveListener(Agent listener, Class<? extends Message> type) {
+			super(listener, type);
+		}
 	}
 }
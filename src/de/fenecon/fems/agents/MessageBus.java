@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) 2015 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package de.fenecon.fems.agents;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Typed publish/subscribe bus for agent messages.
+ * 
+ * Agents subscribe to message classes by publishing a
+ * {@link Message.AddListener} (or calling subscribe()). A published message is
+ * delivered to every agent subscribed to its class or one of its
+ * superclasses; all of them receive the same message instance, so messages
+ * must not be modified by listeners. The listeners per concrete message class
+ * are computed once and cached until the subscriptions change.
+ * 
+ * @author Stefan Feilmeier
+ */
+public class MessageBus {
+	private static MessageBus messageBus = null;
+	
+	public static synchronized MessageBus getMessageBus() {
+		if(messageBus == null) {
+			messageBus = new MessageBus();
+		}
+		return messageBus;
+	}
+	
+	private final static Agent[] NO_LISTENERS = new Agent[0];
+	
+	private final Map<Class<?>, Set<Agent>> subscriptions = new HashMap<Class<?>, Set<Agent>>();
+	private final ConcurrentHashMap<Class<?>, Agent[]> dispatchTable = new ConcurrentHashMap<Class<?>, Agent[]>();
+	
+	/**
+	 * Subscribe an agent to a message class (including its subclasses)
+	 * 
+	 * @param type
+	 * @param listener
+	 */
+	public synchronized void subscribe(Class<? extends Message> type, Agent listener) {
+		Set<Agent> listeners = subscriptions.get(type);
+		if(listeners == null) {
+			listeners = new LinkedHashSet<Agent>();
+			subscriptions.put(type, listeners);
+		}
+		if(listeners.add(listener)) {
+			dispatchTable.clear();
+		}
+	}
+	
+	/**
+	 * Remove a subscription
+	 * 
+	 * @param type
+	 * @param listener
+	 */
+	public synchronized void unsubscribe(Class<? extends Message> type, Agent listener) {
+		Set<Agent> listeners = subscriptions.get(type);
+		if(listeners != null && listeners.remove(listener)) {
+			if(listeners.isEmpty()) {
+				subscriptions.remove(type);
+			}
+			dispatchTable.clear();
+		}
+	}
+	
+	/**
+	 * Deliver a message to all agents subscribed to its type. AddListener and
+	 * RemoveListener messages change the subscriptions instead.
+	 * 
+	 * @param message
+	 * @return number of agents that accepted the message
+	 */
+	public int publish(Message message) {
+		if(message instanceof Message.RemoveListener) {
+			Message.RemoveListener remove = (Message.RemoveListener)message;
+			unsubscribe(remove.getType(), remove.getListener());
+			return 0;
+		} else if(message instanceof Message.AddListener) {
+			Message.AddListener add = (Message.AddListener)message;
+			subscribe(add.getType(), add.getListener());
+			return 0;
+		}
+		int accepted = 0;
+		for(Agent listener : getListeners(message.getClass())) {
+			if(listener.message(message)) {
+				accepted++;
+			}
+		}
+		return accepted;
+	}
+	
+	/**
+	 * Get the listeners for a concrete message class from the dispatch table
+	 * 
+	 * @param type
+	 * @return
+	 */
+	private Agent[] getListeners(Class<?> type) {
+		Agent[] listeners = dispatchTable.get(type);
+		if(listeners == null) {
+			synchronized (this) {
+				Set<Agent> collected = new LinkedHashSet<Agent>();
+				for(Class<?> c = type; c != null; c = c.getSuperclass()) {
+					Set<Agent> subscribed = subscriptions.get(c);
+					if(subscribed != null) {
+						collected.addAll(subscribed);
+					}
+				}
+				listeners = collected.isEmpty() ? NO_LISTENERS : collected.toArray(new Agent[collected.size()]);
+				dispatchTable.put(type, listeners);
+			}
+		}
+		return listeners;
+	}
+	
+	/**
+	 * @return all subscribed message classes with their listeners
+	 */
+	public synchronized Map<Class<?>, List<Agent>> getSubscriptions() {
+		Map<Class<?>, List<Agent>> result = new HashMap<Class<?>, List<Agent>>();
+		for(Map.Entry<Class<?>, Set<Agent>> entry : subscriptions.entrySet()) {
+			result.put(entry.getKey(), new ArrayList<Agent>(entry.getValue()));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,284 @@
+/**
+ * Copyright (c) 2015 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package de.fenecon.fems.agents.OnlineMonitoring;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.fenecon.fems.agents.OnlineMonitoring.Message.DataMessage.MethodType;
+
+/**
+ * Bandwidth budget for metered uplinks, shared by all online-monitoring agents.
+ * 
+ * Every MethodType has a token bucket that holds its share (by weight) of the
+ * hourly budget and is refilled continuously. On top, all types together must
+ * stay within the monthly budget. Requests that do not fit are not sent; the
+ * agents keep them in the cache until there are tokens for the request that
+ * was rejected last.
+ * 
+ * FEMS runs as a short-lived process, so the state is kept in a file.
+ * 
+ * @author Stefan Feilmeier
+ */
+public class BandwidthGovernor {
+	private static Logger logger = LoggerFactory.getLogger(BandwidthGovernor.class);
+	
+	private final static long HOUR = 60 * 60 * 1000; // ms
+	private final static long SAVE_INTERVAL = 60 * 1000; // ms
+	private final static Path STATE_FILE = Paths.get(System.getProperty("user.dir"), "bandwidth.properties");
+	
+	private static BandwidthGovernor bandwidthGovernor = null;
+	
+	public static synchronized BandwidthGovernor getBandwidthGovernor() {
+		if(bandwidthGovernor == null) {
+			bandwidthGovernor = new BandwidthGovernor();
+		}
+		return bandwidthGovernor;
+	}
+	
+	private final MethodType[] types = MethodType.values();
+	private long hourlyBudget = 0; // bytes; 0 for unlimited
+	private long monthlyBudget = 0; // bytes; 0 for unlimited
+	private final double[] tokens = new double[types.length];
+	private final long[] usedThisMonth = new long[types.length];
+	private final long[] rejected = new long[types.length];
+	private final long[] needed = new long[types.length]; // size of the last rejected request; 0 after a request was sent
+	private String month;
+	private long lastRefill = System.currentTimeMillis();
+	private long lastSave = 0;
+	private boolean loaded = false;
+	
+	private BandwidthGovernor() {
+		month = currentMonth();
+		load();
+	}
+	
+	/**
+	 * Set the budgets
+	 * 
+	 * @param hourlyBudget bytes per hour; 0 for unlimited
+	 * @param monthlyBudget bytes per calendar month; 0 for unlimited
+	 */
+	public synchronized void configure(long hourlyBudget, long monthlyBudget) {
+		this.hourlyBudget = hourlyBudget;
+		this.monthlyBudget = monthlyBudget;
+		if(!loaded) { // first run: start with full buckets
+			for(MethodType type : types) {
+				tokens[type.ordinal()] = capacity(type);
+			}
+		}
+		refill(); // adds the tokens since the last run, up to a full bucket
+	}
+	
+	/**
+	 * Take tokens for a request that is about to be sent
+	 * 
+	 * @param type MethodType of the request; null is counted as SYSTEM
+	 * @param bytes size of the request
+	 * @return true if the request may be sent
+	 */
+	public synchronized boolean tryConsume(MethodType type, long bytes) {
+		if(type == null) type = MethodType.SYSTEM;
+		refill();
+		int i = type.ordinal();
+		if((hourlyBudget > 0 && tokens[i] < bytes && tokens[i] < capacity(type))
+				|| (monthlyBudget > 0 && getUsedThisMonth() + bytes > monthlyBudget)) {
+			rejected[i]++;
+			needed[i] = bytes;
+			return false;
+		}
+		needed[i] = 0;
+		if(hourlyBudget > 0) {
+			tokens[i] -= bytes; // a request bigger than the bucket may take a full bucket
+		}
+		usedThisMonth[i] += bytes;
+		if(System.currentTimeMillis() - lastSave >= SAVE_INTERVAL) {
+			save();
+		}
+		return true;
+	}
+	
+	/**
+	 * Correct the tokens taken by tryConsume() once the bytes that were
+	 * actually transferred are known. The bucket may go below zero.
+	 * 
+	 * @param type MethodType of the request; null is counted as SYSTEM
+	 * @param bytes transferred bytes minus the bytes taken; negative to give tokens back
+	 */
+	public synchronized void adjust(MethodType type, long bytes) {
+		if(type == null) type = MethodType.SYSTEM;
+		refill();
+		int i = type.ordinal();
+		if(hourlyBudget > 0) {
+			tokens[i] -= bytes;
+		}
+		usedThisMonth[i] = Math.max(0, usedThisMonth[i] + bytes);
+	}
+	
+	/**
+	 * Check if there is budget for the request of a type that was rejected
+	 * last (or for any request, if none was rejected), without taking tokens
+	 * 
+	 * @param type
+	 * @return
+	 */
+	public synchronized boolean hasBudget(MethodType type) {
+		refill();
+		return getDelay(type) == 0;
+	}
+	
+	/**
+	 * @return time in ms until the first type without budget has enough tokens for its rejected request; 0 if no type lacks budget
+	 */
+	public synchronized long getRefillDelay() {
+		refill();
+		long delay = Long.MAX_VALUE;
+		for(MethodType type : types) {
+			long typeDelay = getDelay(type);
+			if(typeDelay > 0) {
+				delay = Math.min(delay, typeDelay);
+			}
+		}
+		return delay == Long.MAX_VALUE ? 0 : delay;
+	}
+	
+	/**
+	 * @return time in ms until a type has the budget for its rejected request
+	 */
+	private long getDelay(MethodType type) {
+		int i = type.ordinal();
+		if(monthlyBudget > 0 && (getUsedThisMonth() >= monthlyBudget || getUsedThisMonth() + needed[i] > monthlyBudget)) {
+			return HOUR; // check again later; the budget is reset with the next month
+		}
+		if(hourlyBudget <= 0) return 0;
+		double missing = Math.min(needed[i], capacity(type)) - tokens[i]; // tryConsume() lets a full bucket take a bigger request
+		return missing <= 0 ? 0 : Math.max(1, (long)Math.ceil(missing / rate(type)));
+	}
+	
+	public synchronized long getUsedThisMonth() {
+		long used = 0;
+		for(long bytes : usedThisMonth) {
+			used += bytes;
+		}
+		return used;
+	}
+	
+	/**
+	 * Write the state to disk
+	 */
+	public synchronized void save() {
+		Properties state = new Properties();
+		state.setProperty("month", month);
+		state.setProperty("time", String.valueOf(lastRefill));
+		for(MethodType type : types) {
+			state.setProperty("used." + type, String.valueOf(usedThisMonth[type.ordinal()]));
+			state.setProperty("tokens." + type, String.valueOf((long)tokens[type.ordinal()]));
+		}
+		Path tmp = STATE_FILE.resolveSibling(STATE_FILE.getFileName() + ".tmp");
+		try {
+			try (OutputStream out = Files.newOutputStream(tmp)) {
+				state.store(out, "FEMS bandwidth budget");
+			}
+			Files.move(tmp, STATE_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			lastSave = System.currentTimeMillis();
+		} catch (IOException e) {
+			logger.warn("Unable to save bandwidth state: " + e.getMessage());
+		}
+	}
+	
+	private void load() {
+		if(!Files.exists(STATE_FILE)) return;
+		Properties state = new Properties();
+		try (InputStream in = Files.newInputStream(STATE_FILE)) {
+			state.load(in);
+			lastRefill = Long.parseLong(state.getProperty("time", String.valueOf(lastRefill)));
+			boolean sameMonth = month.equals(state.getProperty("month"));
+			for(MethodType type : types) {
+				tokens[type.ordinal()] = Long.parseLong(state.getProperty("tokens." + type, "0"));
+				if(sameMonth) {
+					usedThisMonth[type.ordinal()] = Long.parseLong(state.getProperty("used." + type, "0"));
+				}
+			}
+			loaded = true;
+		} catch (IOException | NumberFormatException e) {
+			logger.warn("Unable to load bandwidth state: " + e.getMessage());
+		}
+	}
+	
+	/** Tokens per ms of a type */
+	private double rate(MethodType type) {
+		return (double)capacity(type) / HOUR;
+	}
+	
+	/** Share of the hourly budget of a type */
+	private long capacity(MethodType type) {
+		int totalWeight = 0;
+		for(MethodType t : types) {
+			totalWeight += t.getWeight();
+		}
+		return hourlyBudget * type.getWeight() / totalWeight;
+	}
+	
+	private void refill() {
+		long now = System.currentTimeMillis();
+		String currentMonth = currentMonth();
+		if(!currentMonth.equals(month)) {
+			logger.info("New month; bandwidth used in " + month + ": " + getUsedThisMonth() + " bytes");
+			month = currentMonth;
+			for(int i=0; i<usedThisMonth.length; i++) {
+				usedThisMonth[i] = 0;
+			}
+		}
+		if(hourlyBudget > 0) {
+			long elapsed = Math.max(0, now - lastRefill);
+			for(MethodType type : types) {
+				int i = type.ordinal();
+				tokens[i] = Math.min(capacity(type), tokens[i] + elapsed * rate(type));
+			}
+		}
+		lastRefill = now;
+	}
+	
+	private static String currentMonth() {
+		return new SimpleDateFormat("yyyy-MM").format(new Date());
+	}
+	
+	@Override
+	public synchronized String toString() {
+		refill();
+		StringBuilder report = new StringBuilder();
+		report.append("used in " + month + ": " + getUsedThisMonth() + " bytes");
+		if(monthlyBudget > 0) {
+			report.append(" of " + monthlyBudget);
+		}
+		for(MethodType type : types) {
+			int i = type.ordinal();
+			if(usedThisMonth[i] == 0 && rejected[i] == 0) continue;
+			report.append("; " + type + ": " + usedThisMonth[i] + " bytes");
+			if(hourlyBudget > 0) {
+				report.append(", " + (long)tokens[i] + " of " + capacity(type) + " left this hour");
+			}
+			if(rejected[i] > 0) {
+				report.append(", " + rejected[i] + " requests held back");
+			}
+		}
+		return report.toString();
+	}
+}
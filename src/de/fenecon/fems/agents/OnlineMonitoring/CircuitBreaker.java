@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2015 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package de.fenecon.fems.agents.OnlineMonitoring;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retry policy for online-monitoring, shared by all online-monitoring agents.
+ *
+ * Every failed send doubles the retry delay (with random jitter) up to a
+ * maximum. After a number of consecutive failures the circuit opens: no
+ * requests are sent until the retry delay has passed. Then a single trial
+ * request is allowed (half-open); its result closes or opens the circuit again.
+ *
+ * @author Stefan Feilmeier
+ */
+public class CircuitBreaker {
+	private static Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+	public final static long DEFAULT_BASE_DELAY = 1000; // ms
+	public final static long DEFAULT_MAX_DELAY = 2 * 60 * 1000; // ms
+	public final static int DEFAULT_FAILURE_THRESHOLD = 3;
+
+	public static enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private static CircuitBreaker circuitBreaker = null;
+
+	public static synchronized CircuitBreaker getCircuitBreaker() {
+		if(circuitBreaker == null) {
+			circuitBreaker = new CircuitBreaker();
+		}
+		return circuitBreaker;
+	}
+
+	private long baseDelay = DEFAULT_BASE_DELAY;
+	private long maxDelay = DEFAULT_MAX_DELAY;
+	private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+
+	private State state = State.CLOSED;
+	private int failures = 0;
+	private long retryAt = 0;
+	private boolean trialRunning = false;
+
+	/**
+	 * Configure the retry policy
+	 *
+	 * @param baseDelay delay in ms after the first failure
+	 * @param maxDelay maximum delay in ms
+	 * @param failureThreshold number of consecutive failures that open the circuit
+	 */
+	public synchronized void configure(long baseDelay, long maxDelay, int failureThreshold) {
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+		this.failureThreshold = failureThreshold;
+	}
+
+	/**
+	 * Check if a request may be sent now. In half-open state only the first
+	 * caller gets a trial request until its result is recorded.
+	 *
+	 * @return true if the request may be sent
+	 */
+	public synchronized boolean allowRequest() {
+		switch(state) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if(System.currentTimeMillis() < retryAt) return false;
+			logger.info("Circuit is half-open; sending trial request");
+			state = State.HALF_OPEN;
+			trialRunning = true;
+			return true;
+		default: // HALF_OPEN
+			if(trialRunning) return false;
+			trialRunning = true;
+			return true;
+		}
+	}
+
+	/**
+	 * A request that was allowed was not sent after all; in half-open state
+	 * the next caller gets the trial instead
+	 */
+	public synchronized void releaseRequest() {
+		trialRunning = false;
+	}
+
+	/**
+	 * A request was sent successfully
+	 */
+	public synchronized void recordSuccess() {
+		if(state != State.CLOSED) {
+			logger.info("Circuit is closed again after " + failures + " failures");
+		}
+		state = State.CLOSED;
+		failures = 0;
+		retryAt = 0;
+		trialRunning = false;
+	}
+
+	/**
+	 * A request failed
+	 */
+	public synchronized void recordFailure() {
+		failures++;
+		trialRunning = false;
+		long backoff = Math.min(maxDelay, baseDelay << Math.min(failures - 1, 30));
+		long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+		retryAt = System.currentTimeMillis() + delay;
+		if(state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+			logger.info("Circuit is open after " + failures + " failures; retrying in " + delay + " ms");
+			state = State.OPEN;
+		}
+	}
+
+	/**
+	 * @return time in ms until the next retry should be made; 0 if now
+	 */
+	public synchronized long getRetryDelay() {
+		return Math.max(0, retryAt - System.currentTimeMillis());
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2015 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package de.fenecon.fems.agents.OnlineMonitoring;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
+
+/**
+ * Reduces the states of data requests to the ones that changed since the last
+ * snapshot the server acknowledged for the same method (MethodType).
+ *
+ * A delta request carries the timestamp of its base snapshot in the "delta"
+ * parameter. Every keyframeInterval requests (and whenever the server answers
+ * with "resync": true) a full snapshot is sent instead.
+ *
+ * Not thread-safe; it is meant to be used by the sending agent only.
+ *
+ * @author Stefan Feilmeier
+ */
+public class DeltaEncoder {
+	private Logger logger = LoggerFactory.getLogger(DeltaEncoder.class);
+
+	public final static int DEFAULT_KEYFRAME_INTERVAL = 60;
+
+	private static class MethodState {
+		private Map<String, Object> ackedStates = null;
+		private Object ackedTimestamp = null;
+		private int deltasSinceKeyframe = 0;
+	}
+
+	private final Map<String, MethodState> methods = new HashMap<String, MethodState>();
+	private final int keyframeInterval;
+
+	public DeltaEncoder(int keyframeInterval) {
+		this.keyframeInterval = keyframeInterval;
+	}
+
+	/**
+	 * Get the request to be sent instead of the given full request
+	 *
+	 * @param request full request
+	 * @return delta request, or the full request if a keyframe is due
+	 */
+	public JSONRPC2Request encode(JSONRPC2Request request) {
+		Map<String, Object> params = request.getNamedParams();
+		if(params == null || !(params.get("states") instanceof Map<?, ?>)) {
+			return request; // nothing to reduce
+		}
+		Map<?, ?> states = (Map<?, ?>)params.get("states");
+		MethodState state = getMethodState(request.getMethod());
+		if(state.ackedStates == null || state.deltasSinceKeyframe >= keyframeInterval
+				|| !states.keySet().containsAll(state.ackedStates.keySet())) {
+			state.deltasSinceKeyframe = 0;
+			return request;
+		}
+		HashMap<String, Object> changedStates = new HashMap<String, Object>();
+		for(Map.Entry<?, ?> entry : states.entrySet()) {
+			Object ackedValue = state.ackedStates.get(entry.getKey());
+			if(ackedValue == null ? entry.getValue() != null : !ackedValue.equals(entry.getValue())) {
+				changedStates.put(String.valueOf(entry.getKey()), entry.getValue());
+			}
+		}
+		HashMap<String, Object> deltaParams = new HashMap<String, Object>(params);
+		deltaParams.put("states", changedStates);
+		deltaParams.put("delta", state.ackedTimestamp);
+		state.deltasSinceKeyframe++;
+		return new JSONRPC2Request(request.getMethod(), deltaParams, request.getID());
+	}
+
+	/**
+	 * The server acknowledged a request. Its full states become the base for
+	 * the next deltas unless the server asked for a resync.
+	 *
+	 * @param request full request that was acknowledged
+	 * @param result result from the server or null
+	 */
+	public void acknowledge(JSONRPC2Request request, Map<?, ?> result) {
+		if(result != null && Boolean.TRUE.equals(result.get("resync"))) {
+			logger.info("Server requested a full snapshot for " + request.getMethod() + "-data");
+			reset(request.getMethod());
+			return;
+		}
+		Map<String, Object> params = request.getNamedParams();
+		if(params == null || !(params.get("states") instanceof Map<?, ?>)) return;
+		Object timestamp = params.get("timestamp");
+		MethodState state = getMethodState(request.getMethod());
+		if(state.ackedTimestamp instanceof Number && timestamp instanceof Number
+				&& ((Number)timestamp).longValue() < ((Number)state.ackedTimestamp).longValue()) {
+			return; // older than the current base
+		}
+		HashMap<String, Object> states = new HashMap<String, Object>();
+		for(Map.Entry<?, ?> entry : ((Map<?, ?>)params.get("states")).entrySet()) {
+			states.put(String.valueOf(entry.getKey()), entry.getValue());
+		}
+		state.ackedStates = states;
+		state.ackedTimestamp = timestamp;
+	}
+
+	/**
+	 * Forget the acknowledged snapshot, so that the next request is sent in full
+	 *
+	 * @param method
+	 */
+	public void reset(String method) {
+		methods.remove(method);
+	}
+
+	private MethodState getMethodState(String method) {
+		MethodState state = methods.get(method);
+		if(state == null) {
+			state = new MethodState();
+			methods.put(method, state);
+		}
+		return state;
+	}
+}
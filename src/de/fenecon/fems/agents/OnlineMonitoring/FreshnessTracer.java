@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2015 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package de.fenecon.fems.agents.OnlineMonitoring;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
+
+import de.fenecon.fems.agents.Histogram;
+import de.fenecon.fems.agents.OnlineMonitoring.Message.DataMessage.MethodType;
+
+/**
+ * Measures the freshness of data: the age of a sample (now minus its
+ * timestamp) when it passes each stage on its way to online-monitoring.
+ * The age at ACK is the end-to-end latency, including the detour through the
+ * cache.
+ * 
+ * Recording is a few atomic operations, so tracing is always on. Percentiles
+ * are available per MethodType and stage, as report and via JMX
+ * (de.fenecon.fems:type=Freshness).
+ * 
+ * @author Stefan Feilmeier
+ */
+public class FreshnessTracer implements FreshnessTracerMBean {
+	private static Logger logger = LoggerFactory.getLogger(FreshnessTracer.class);
+	
+	public static enum Stage {
+		/** added to the mailbox of the online-monitoring agent */
+		ENQUEUE,
+		/** taken from the mailbox */
+		DEQUEUE,
+		/** converted to JSON */
+		SERIALIZE,
+		/** handed to the transport */
+		SEND,
+		/** diverted to the cache */
+		CACHE,
+		/** acknowledged by the server, directly or from the cache */
+		ACK
+	}
+	
+	private static FreshnessTracer freshnessTracer = null;
+	
+	public static synchronized FreshnessTracer getFreshnessTracer() {
+		if(freshnessTracer == null) {
+			freshnessTracer = new FreshnessTracer();
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(freshnessTracer, 
+						new ObjectName("de.fenecon.fems:type=Freshness"));
+			} catch (Exception e) {
+				logger.warn("Unable to register freshness tracer for JMX: " + e.getMessage());
+			}
+		}
+		return freshnessTracer;
+	}
+	
+	/* ages in ms by [MethodType][Stage] */
+	private final Histogram[][] ages = new Histogram[MethodType.values().length][Stage.values().length];
+	
+	private FreshnessTracer() {
+		for(int i=0; i<ages.length; i++) {
+			for(int j=0; j<ages[i].length; j++) {
+				ages[i][j] = new Histogram();
+			}
+		}
+	}
+	
+	/**
+	 * A sample passed a stage
+	 * 
+	 * @param method
+	 * @param stage
+	 * @param timestamp time of the sample in ms; 0 if unknown
+	 */
+	public void record(MethodType method, Stage stage, long timestamp) {
+		if(method == null || timestamp <= 0) return;
+		ages[method.ordinal()][stage.ordinal()].record(System.currentTimeMillis() - timestamp);
+	}
+	
+	/**
+	 * A request passed a stage; the time of the sample is taken from its
+	 * "timestamp" parameter (in s)
+	 * 
+	 * @param request
+	 * @param stage
+	 */
+	public void record(JSONRPC2Request request, Stage stage) {
+		Map<String, Object> params = request.getNamedParams();
+		Object timestamp = params != null ? params.get("timestamp") : null;
+		if(timestamp instanceof Number) {
+			record(MethodType.fromString(request.getMethod()), stage, ((Number)timestamp).longValue() * 1000);
+		}
+	}
+	
+	/**
+	 * Get a percentile of the age of samples at a stage
+	 * 
+	 * @param method
+	 * @param stage
+	 * @param percentile 0..100
+	 * @return age in ms; 0 if there were no samples
+	 */
+	public long getAge(MethodType method, Stage stage, double percentile) {
+		return ages[method.ordinal()][stage.ordinal()].getPercentile(percentile);
+	}
+	
+	/**
+	 * Get the number of samples that passed a stage
+	 */
+	public long getCount(MethodType method, Stage stage) {
+		return ages[method.ordinal()][stage.ordinal()].getCount();
+	}
+	
+	/**
+	 * Freshness per MethodType and stage, one line per MethodType with samples
+	 */
+	@Override
+	public String getReport() {
+		StringBuilder report = new StringBuilder();
+		for(MethodType method : MethodType.values()) {
+			if(getCount(method, Stage.ENQUEUE) == 0 && getCount(method, Stage.ACK) == 0) continue;
+			if(report.length() > 0) report.append('\n');
+			report.append(method);
+			for(Stage stage : Stage.values()) {
+				Histogram histogram = ages[method.ordinal()][stage.ordinal()];
+				if(histogram.getCount() == 0) continue;
+				report.append(String.format(" | %s %d: p50 %d ms, p99 %d ms, max %d ms", stage, histogram.getCount(),
+						histogram.getPercentile(50), histogram.getPercentile(99), histogram.getMax()));
+			}
+		}
+		return report.toString();
+	}
+	
+	@Override
+	public String toString() {
+		return getReport();
+	}
+}
@@ -0,0 +1,18 @@
+/**
+ * Copyright (c) 2015 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package de.fenecon.fems.agents.OnlineMonitoring;
+
+/**
+ * JMX view of {@link FreshnessTracer}
+ * 
+ * @author Stefan Feilmeier
+ */
+public interface FreshnessTracerMBean {
+	public String getReport();
+}
@@ -0,0 +1,60 @@
+package de.fenecon.fems.agents.OnlineMonitoring.Message;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns channel (state) names to small int ids, so that samples do not need
+ * to carry their names
+ */
+public class ChannelDictionary {
+	private static ChannelDictionary channelDictionary = null;
+	
+	public static synchronized ChannelDictionary getChannelDictionary() {
+		if(channelDictionary == null) {
+			channelDictionary = new ChannelDictionary();
+		}
+		return channelDictionary;
+	}
+	
+	private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	private volatile String[] names = new String[64];
+	private int size = 0;
+	
+	/**
+	 * Get the id of a channel name; a new id is assigned on first use
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public int intern(String name) {
+		Integer id = ids.get(name);
+		if(id != null) return id;
+		synchronized (this) {
+			id = ids.get(name);
+			if(id != null) return id;
+			String[] names = this.names;
+			if(size == names.length) {
+				names = Arrays.copyOf(names, size * 2);
+			}
+			names[size] = name;
+			this.names = names;
+			ids.put(name, size); // publishes the name
+			return size++;
+		}
+	}
+	
+	/**
+	 * Get the name of a channel id
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public String getName(int id) {
+		return names[id];
+	}
+	
+	public synchronized int size() {
+		return size;
+	}
+}
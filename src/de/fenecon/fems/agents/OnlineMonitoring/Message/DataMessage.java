@@ -1,5 +1,7 @@
 package de.fenecon.fems.agents.OnlineMonitoring.Message;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
@@ -7,51 +9,351 @@ import java.util.Map;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
 
 import de.fenecon.fems.tools.FEMSYaler;
+import de.fenecon.fems.tools.JSONWriter;
 
 /**
  * Message with data to be sent to Online-Monitoring
+ * 
+ * States are kept compact: channel names are interned in the
+ * {@link ChannelDictionary} and values are stored in primitive arrays. JSON is
+ * only created when the message is sent, directly from the arrays (see
+ * {@link #writeRequest(JSONWriter, Map)}).
  */
 public class DataMessage extends Message {
-	/* General types of DataMessages */
+	/* General types of DataMessages; the weight is the share of a type when data is sent by priority */
 	public static enum MethodType {
-	    COMMERCIAL("commercial"),
-	    PRO("pro"),
-	    IO("io"),
-	    SYSTEM("system"),
-	    WEATHER("weather");
+	    COMMERCIAL("commercial", 2),
+	    PRO("pro", 2),
+	    IO("io", 2),
+	    SYSTEM("system", 8),
+	    WEATHER("weather", 1);
 
 	    private final String text;
-	    private MethodType(final String text) {
+	    private final int weight;
+	    private MethodType(final String text, final int weight) {
 	        this.text = text;
+	        this.weight = weight;
 	    }
 	    @Override
 	    public String toString() {
 	        return text;
 	    }
+	    public int getWeight() {
+	    	return weight;
+	    }
+	    /** Get the weights of all types, indexed by ordinal */
+	    public static int[] getWeights() {
+	    	MethodType[] types = values();
+	    	int[] weights = new int[types.length];
+	    	for(int i=0; i<types.length; i++) {
+	    		weights[i] = types[i].weight;
+	    	}
+	    	return weights;
+	    }
+	    /** Get the MethodType for a JSON-RPC method name; null if unknown */
+	    public static MethodType fromString(String text) {
+	    	for(MethodType type : values()) {
+	    		if(type.text.equals(text)) return type;
+	    	}
+	    	return null;
+	    }
 	}
 	
-	protected final JSONRPC2Request request;
+	/* kinds of values */
+	private final static byte LONG = 0;
+	private final static byte DOUBLE = 1;
+	private final static byte BOOLEAN = 2;
+	private final static byte OBJECT = 3;
+	
 	protected final static int JSON_RPC_ID = 0;
+	protected final MethodType method;
+	protected final long timestamp;
+	private final boolean yaler;
+	private final Map<String, Object> params;
+	/* states: channel ids from the ChannelDictionary, values as raw bits (see kinds) */
+	private final int[] channels;
+	private final long[] values;
+	private final byte[] kinds;
+	private final Object[] objects; // only for values that are neither numbers nor booleans
+	private final boolean hasStates;
+	private volatile JSONRPC2Request request = null;
 	
+	/**
+	 * Create a message from a map of states. Use a {@link Builder} to avoid the
+	 * map for recurring samples.
+	 * 
+	 * @param method
+	 * @param states may be null
+	 * @param params additional request parameters; may be null
+	 */
 	public DataMessage(MethodType method, Map<String, Object> states, Map<String, Object> params) {
 		this(new Date(), method, states, params);
 	}
 	
 	public DataMessage(Date timestamp, MethodType method, 
 			Map<String, Object> states, Map<String, Object> params) {
+		this.method = method;
+		this.timestamp = timestamp.getTime();
+		this.yaler = FEMSYaler.getFEMSYaler().isActive();
+		this.params = params != null ? new HashMap<String, Object>(params) : null;
+		this.hasStates = states != null;
+		int size = states != null ? states.size() : 0;
+		this.channels = new int[size];
+		this.values = new long[size];
+		this.kinds = new byte[size];
+		Object[] objects = null;
+		if(states != null) {
+			ChannelDictionary dictionary = ChannelDictionary.getChannelDictionary();
+			int i = 0;
+			for(Map.Entry<String, Object> state : states.entrySet()) {
+				channels[i] = dictionary.intern(state.getKey());
+				Object value = state.getValue();
+				if(value instanceof Double || value instanceof Float) {
+					kinds[i] = DOUBLE;
+					values[i] = Double.doubleToRawLongBits(((Number)value).doubleValue());
+				} else if(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+					kinds[i] = LONG;
+					values[i] = ((Number)value).longValue();
+				} else if(value instanceof Boolean) {
+					kinds[i] = BOOLEAN;
+					values[i] = (Boolean)value ? 1 : 0;
+				} else {
+					kinds[i] = OBJECT;
+					if(objects == null) objects = new Object[size];
+					objects[i] = value;
+				}
+				i++;
+			}
+		}
+		this.objects = objects;
+	}
+	
+	private DataMessage(MethodType method, long timestamp, int[] channels, long[] values, byte[] kinds, 
+			Map<String, Object> params) {
+		this.method = method;
+		this.timestamp = timestamp;
+		this.yaler = FEMSYaler.getFEMSYaler().isActive();
+		this.params = params != null ? new HashMap<String, Object>(params) : null;
+		this.channels = channels;
+		this.values = values;
+		this.kinds = kinds;
+		this.objects = null;
+		this.hasStates = true;
+	}
+	
+	/**
+	 * Collects the states of a sample in primitive arrays. A builder can be
+	 * reused for the next sample after build().
+	 */
+	public static class Builder {
+		private final MethodType method;
+		private Map<String, Object> params = null;
+		private long timestamp = -1;
+		private int[] channels = new int[16];
+		private long[] values = new long[16];
+		private byte[] kinds = new byte[16];
+		private int size = 0;
+		
+		public Builder(MethodType method) {
+			this.method = method;
+		}
+		
+		/** Set the time of the sample in ms; default is the time of build() */
+		public Builder setTimestamp(long timestamp) {
+			this.timestamp = timestamp;
+			return this;
+		}
+		
+		/** Set additional request parameters; they are copied by build() */
+		public Builder setParams(Map<String, Object> params) {
+			this.params = params;
+			return this;
+		}
+		
+		/** @param channel id from {@link ChannelDictionary#intern(String)} */
+		public Builder put(int channel, double value) {
+			return add(channel, Double.doubleToRawLongBits(value), DOUBLE);
+		}
+		
+		/** @param channel id from {@link ChannelDictionary#intern(String)} */
+		public Builder put(int channel, long value) {
+			return add(channel, value, LONG);
+		}
+		
+		/** @param channel id from {@link ChannelDictionary#intern(String)} */
+		public Builder put(int channel, boolean value) {
+			return add(channel, value ? 1 : 0, BOOLEAN);
+		}
+		
+		private Builder add(int channel, long value, byte kind) {
+			if(size == channels.length) {
+				channels = Arrays.copyOf(channels, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+				kinds = Arrays.copyOf(kinds, size * 2);
+			}
+			channels[size] = channel;
+			values[size] = value;
+			kinds[size] = kind;
+			size++;
+			return this;
+		}
+		
+		/** Create the message and reset the builder */
+		public DataMessage build() {
+			DataMessage message = new DataMessage(method, timestamp >= 0 ? timestamp : System.currentTimeMillis(),
+					Arrays.copyOf(channels, size), Arrays.copyOf(values, size), Arrays.copyOf(kinds, size), params);
+			size = 0;
+			timestamp = -1;
+			params = null;
+			return message;
+		}
+	}
+	
+	public MethodType getMethodType() {
+		return method;
+	}
+	
+	/** Get the time of the sample in ms */
+	public long getTimestamp() {
+		return timestamp;
+	}
+	
+	/** Number of states */
+	public int size() {
+		return channels.length;
+	}
+	
+	/** Get the channel id of the i-th state */
+	public int getChannel(int i) {
+		return channels[i];
+	}
+	
+	/** Get the value of the i-th state as Object */
+	public Object getValue(int i) {
+		switch(kinds[i]) {
+		case LONG:
+			return values[i];
+		case DOUBLE:
+			return Double.longBitsToDouble(values[i]);
+		case BOOLEAN:
+			return values[i] != 0;
+		default:
+			return objects[i];
+		}
+	}
+	
+	/** Get the states as new map */
+	public Map<String, Object> getStates() {
+		ChannelDictionary dictionary = ChannelDictionary.getChannelDictionary();
+		HashMap<String, Object> states = new HashMap<String, Object>(channels.length * 4 / 3 + 1);
+		for(int i=0; i<channels.length; i++) {
+			states.put(dictionary.getName(channels[i]), getValue(i));
+		}
+		return states;
+	}
+	
+	/**
+	 * Create a JSON-RPC request for sending
+	 * 
+	 * @param extraParams parameters to add, e.g. the apikey; may be null
+	 * @return new request
+	 */
+	public JSONRPC2Request toJsonRpcRequest(Map<String, Object> extraParams) {
 		HashMap<String, Object> newParams = new HashMap<String, Object>();
-		newParams.put("timestamp", timestamp.getTime()/1000);
+		newParams.put("timestamp", timestamp/1000);
 		if(params != null) {
 			newParams.putAll(params);
 		}
-		if(states != null) {
-			newParams.put("states", states);
+		if(hasStates) {
+			newParams.put("states", getStates());
+		}
+		newParams.put("yaler", yaler);
+		if(extraParams != null) {
+			newParams.putAll(extraParams);
 		}
-		newParams.put("yaler", FEMSYaler.getFEMSYaler().isActive());
-		request = new JSONRPC2Request(method.toString(), newParams, JSON_RPC_ID);
+		return new JSONRPC2Request(method.toString(), newParams, JSON_RPC_ID);
 	}
 	
+	/**
+	 * Serialize the request of {@link #toJsonRpcRequest(Map)} as record (see
+	 * {@link JSONWriter}), writing the states directly from the primitive arrays
+	 * 
+	 * @param writer
+	 * @param extraParams parameters to add, e.g. the apikey; may be null
+	 * @throws IllegalArgumentException if a parameter cannot be written as JSON
+	 */
+	public void writeRequest(JSONWriter writer, Map<String, Object> extraParams) {
+		Map<String, Object> params = this.params != null ? this.params : Collections.<String, Object>emptyMap();
+		Map<String, Object> extra = extraParams != null ? extraParams : Collections.<String, Object>emptyMap();
+		// same precedence as in toJsonRpcRequest(): extra parameters, yaler, states, params, timestamp
+		writer.writeRequestStart(JSON_RPC_ID, method.toString());
+		writer.writeKey("timestamp");
+		if(extra.containsKey("timestamp")) {
+			writer.writeValue(extra.get("timestamp"));
+		} else if(params.containsKey("timestamp")) {
+			writer.writeValue(params.get("timestamp"));
+		} else {
+			writer.writeNumber(timestamp/1000);
+		}
+		for(Map.Entry<String, Object> param : params.entrySet()) {
+			String key = param.getKey();
+			if(key.equals("timestamp") || key.equals("yaler") || (hasStates && key.equals("states")) 
+					|| extra.containsKey(key)) continue;
+			writer.write(',');
+			writer.writeKey(key);
+			writer.writeValue(param.getValue());
+		}
+		if(hasStates && !extra.containsKey("states")) {
+			writer.write(',');
+			writer.writeKey("states");
+			writeStates(writer);
+		}
+		if(!extra.containsKey("yaler")) {
+			writer.write(',');
+			writer.writeKey("yaler");
+			writer.writeBoolean(yaler);
+		}
+		for(Map.Entry<String, Object> param : extra.entrySet()) {
+			if(param.getKey().equals("timestamp")) continue;
+			writer.write(',');
+			writer.writeKey(param.getKey());
+			writer.writeValue(param.getValue());
+		}
+		writer.write('}');
+		writer.write('}');
+	}
+	
+	private void writeStates(JSONWriter writer) {
+		ChannelDictionary dictionary = ChannelDictionary.getChannelDictionary();
+		writer.write('{');
+		for(int i=0; i<channels.length; i++) {
+			if(i > 0) writer.write(',');
+			writer.writeKey(dictionary.getName(channels[i]));
+			switch(kinds[i]) {
+			case LONG:
+				writer.writeNumber(values[i]);
+				break;
+			case DOUBLE:
+				writer.writeNumber(Double.longBitsToDouble(values[i]));
+				break;
+			case BOOLEAN:
+				writer.writeBoolean(values[i] != 0);
+				break;
+			default:
+				writer.writeValue(objects[i]);
+			}
+		}
+		writer.write('}');
+	}
+	
+	/**
+	 * Get the request; it is created on first use and may be shared by several
+	 * agents, so it must not be modified
+	 */
 	public JSONRPC2Request getJsonRpcRequest() {
+		if(request == null) {
+			request = toJsonRpcRequest(null);
+		}
 		return request;
 	}
 }
@@ -2,18 +2,25 @@ package de.fenecon.fems.agents.OnlineMonitoring;
 
 import java.io.IOException;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
 
+import net.minidev.json.JSONValue;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.thetransactioncompany.jsonrpc2.JSONRPC2ParseException;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
-import com.thetransactioncompany.jsonrpc2.client.JSONRPC2Session;
-import com.thetransactioncompany.jsonrpc2.client.JSONRPC2SessionException;
 
 import de.fenecon.fems.agents.Agent;
+import de.fenecon.fems.agents.OnlineMonitoring.Message.DataMessage.MethodType;
+import de.fenecon.fems.tools.JSONWriter;
 
 public abstract class OnlineMonitoringAbstractAgent extends Agent {
 	private Logger logger = LoggerFactory.getLogger(OnlineMonitoringAbstractAgent.class);
@@ -27,6 +34,21 @@ public abstract class OnlineMonitoringAbstractAgent extends Agent {
 	    }
 	}
 	
+	private static final Charset CHARSET = StandardCharsets.UTF_8;
+	private static final String CONTENT_TYPE = "application/json";
+	
+	/* request bodies are written into a reused buffer per sending thread */
+	private static final ThreadLocal<JSONWriter> writers = new ThreadLocal<JSONWriter>() {
+		@Override
+		protected JSONWriter initialValue() {
+			return new JSONWriter();
+		}
+	};
+	
+	protected final OnlineMonitoringTransport transport = OnlineMonitoringTransport.getTransport();
+	protected final CircuitBreaker circuitBreaker = CircuitBreaker.getCircuitBreaker();
+	protected final BandwidthGovernor bandwidthGovernor = BandwidthGovernor.getBandwidthGovernor();
+	
 	protected volatile String apikey = null;
 	
 	/**
@@ -45,7 +67,7 @@ public abstract class OnlineMonitoringAbstractAgent extends Agent {
 	/**
 	 * Send message to online-monitoring 
 	 */
-	protected Map<?, ?> sendToOnlineMonitoring(JSONRPC2Request request) throws JSONRPC2SessionException, IOException {
+	protected Map<?, ?> sendToOnlineMonitoring(JSONRPC2Request request) throws IOException {
 		// was apikey set? otherwise send to cache
 		if(this.apikey == null) {
 			logger.info("No apikey - caching data");
@@ -55,22 +77,170 @@ public abstract class OnlineMonitoringAbstractAgent extends Agent {
 		}
 		
 		// send JSON-RPC to server
-		JSONRPC2Session session = new JSONRPC2Session(ONLINE_MONITORING_URL);
-		JSONRPC2Response response = session.send(request);			
+		JSONWriter writer = writers.get();
+		writer.reset();
+		try {
+			writer.writeRequest(request);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage());
+		}
+		byte[] responseBody = transport.post(writer.getBuffer(), writer.size(), CONTENT_TYPE);
+		JSONRPC2Response response;
+		try {
+			response = JSONRPC2Response.parse(new String(responseBody, CHARSET));
+		} catch (JSONRPC2ParseException e) {
+			throw new IOException("Invalid server response: " + e.getMessage());
+		}
 
-		// handle result
-		Date timestamp = null;
+		return evaluateResponse(request, response);
+	}
+	
+	/**
+	 * Check the bandwidth budget for a request that is about to be sent and
+	 * take its size from the budget. After the exchange the budget is
+	 * corrected to the traffic the transport estimated.
+	 * 
+	 * @param method
+	 * @param record the serialized request
+	 * @return true if the request may be sent; false if it has to wait in the cache
+	 */
+	protected boolean withinBudget(String method, byte[] record) {
+		return bandwidthGovernor.tryConsume(MethodType.fromString(method), record.length);
+	}
+	
+	/**
+	 * Send several requests to online-monitoring as one JSON-RPC 2.0 batch.
+	 * The records are copied into the body as they are; only their ids are
+	 * replaced by their index in the list. Records that were not written by
+	 * {@link JSONWriter} are left out, so that they cannot fail the others.
+	 * The bytes on the network are charged to the bandwidth budget in place
+	 * of the record sizes taken by withinBudget().
+	 * 
+	 * @param records requests serialized by {@link JSONWriter}
+	 * @param methods the methods of the requests
+	 * @return responses in the order of the requests; null for requests without response
+	 * @throws IOException if the batch as a whole could not be sent
+	 */
+	protected JSONRPC2Response[] sendBatchToOnlineMonitoring(List<byte[]> records, List<String> methods) throws IOException {
+		if(this.apikey == null) {
+			logger.info("No apikey - caching data");
+			throw new IOException("No apikey");
+		}
+		
+		// build batch array
+		JSONWriter body = writers.get();
+		body.reset();
+		body.write('[');
+		int framed = 0;
+		long recordBytes = 0;
+		for(int i=0; i<records.size(); i++) {
+			if(!JSONWriter.isRecord(records.get(i))) {
+				logger.error("Batch of " + records.size() + " requests; leaving out invalid record " + i);
+				continue;
+			}
+			if(framed++ > 0) body.write(',');
+			body.writeRecord(records.get(i), i);
+			recordBytes += records.get(i).length;
+		}
+		body.write(']');
+		if(framed == 0) {
+			return new JSONRPC2Response[records.size()];
+		}
+		
+		// send batch to server
+		OnlineMonitoringTransport.Exchange exchange;
+		try {
+			exchange = transport.exchange(body.getBuffer(), body.size(), CONTENT_TYPE);
+		} catch (IOException e) {
+			throw new IOException("Batch of " + records.size() + " requests; " + e.getMessage());
+		}
+		chargeExchange(records, methods, recordBytes, exchange.getBytes());
+		
+		// assign responses to requests by id
+		Object parsed = JSONValue.parse(new String(exchange.getResponse(), CHARSET));
+		if(!(parsed instanceof List<?>)) {
+			throw new IOException("Batch of " + records.size() + " requests; invalid server response: " + parsed);
+		}
+		JSONRPC2Response[] responses = new JSONRPC2Response[records.size()];
+		for(Object entry : (List<?>)parsed) {
+			try {
+				JSONRPC2Response response = JSONRPC2Response.parse(JSONValue.toJSONString(entry));
+				if(response.getID() instanceof Number) {
+					int index = ((Number)response.getID()).intValue();
+					if(index >= 0 && index < responses.length) {
+						responses[index] = response;
+					}
+				}
+			} catch (JSONRPC2ParseException e) {
+				logger.warn("Unable to parse batch response: " + e.getMessage());
+			}
+		}
+		return responses;
+	}
+	
+	/**
+	 * Charge the estimated bytes of an exchange to the bandwidth budget. They are
+	 * shared among the requests by size; only the difference to the record
+	 * sizes taken by withinBudget() is charged.
+	 */
+	private void chargeExchange(List<byte[]> records, List<String> methods, long recordBytes, long exchangeBytes) {
+		if(exchangeBytes <= 0 || recordBytes <= 0) {
+			return;
+		}
+		Map<MethodType, Long> corrections = new EnumMap<MethodType, Long>(MethodType.class);
+		for(int i=0; i<records.size(); i++) {
+			if(!JSONWriter.isRecord(records.get(i))) continue;
+			long length = records.get(i).length;
+			long correction = exchangeBytes * length / recordBytes - length;
+			MethodType type = MethodType.fromString(methods.get(i));
+			if(type == null) type = MethodType.SYSTEM;
+			Long sum = corrections.get(type);
+			corrections.put(type, sum == null ? correction : sum + correction);
+		}
+		for(Map.Entry<MethodType, Long> correction : corrections.entrySet()) {
+			bandwidthGovernor.adjust(correction.getKey(), correction.getValue());
+		}
+	}
+	
+	/**
+	 * Evaluate the server response to a request
+	 * 
+	 * @param request
+	 * @param response response or null if the server did not answer this request
+	 * @return result map or null
+	 * @throws IOException if the request was not successful
+	 */
+	protected Map<?, ?> evaluateResponse(JSONRPC2Request request, JSONRPC2Response response) throws IOException {
+		long timestamp = 0;
 		try {
 			Map<String, Object> params = request.getNamedParams();
 			if(params.containsKey("timestamp")) { // read timestamp from request for log message
-				timestamp = new Date(((Long)(params.get("timestamp")))*1000);
+				timestamp = ((Number)(params.get("timestamp"))).longValue()*1000;
 			}
 		} catch (ClassCastException e) {
 			logger.warn("Unable to get timestamp: " + e.getMessage());
-			timestamp = null;
+		}
+		return evaluateResponse(request.getMethod(), timestamp, response);
+	}
+	
+	/**
+	 * Evaluate the server response to a serialized request
+	 * 
+	 * @param method method of the request
+	 * @param time time of the sample in ms for the log message; 0 if unknown
+	 * @param response response or null if the server did not answer this request
+	 * @return result map or null
+	 * @throws IOException if the request was not successful
+	 */
+	protected Map<?, ?> evaluateResponse(String method, long time, JSONRPC2Response response) throws IOException {
+		Date timestamp = time > 0 ? new Date(time) : null;
+		if(response == null) {
+			throw new IOException(method + "-data"
+					+ (timestamp != null ? " from " + timestamp.toString() : "")
+					+ "; no server response");
 		}
 		if(response.indicatesSuccess()) {
-			logger.info("Successfully sent " + request.getMethod() + "-data" 
+			logger.info("Successfully sent " + method + "-data" 
 					+ (timestamp != null ? " from " + timestamp.toString() : "") );
 			Object result = response.getResult();
 			if(result instanceof Map<?, ?>) {
@@ -79,7 +249,7 @@ public abstract class OnlineMonitoringAbstractAgent extends Agent {
 				return null;
 			}
 		} else {
-			throw new IOException(request.getMethod() + "-data"
+			throw new IOException(method + "-data"
 					+ (timestamp != null ? " from " + timestamp.toString() : "")
 					+ "; server response: " + response.getError().getMessage());
 		}
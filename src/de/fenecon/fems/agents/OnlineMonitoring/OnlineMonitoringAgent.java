@@ -1,24 +1,91 @@
 package de.fenecon.fems.agents.OnlineMonitoring;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
-import com.thetransactioncompany.jsonrpc2.client.JSONRPC2SessionException;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
 
+import de.fenecon.fems.agents.AgentRuntime;
+import de.fenecon.fems.agents.Mailbox;
 import de.fenecon.fems.agents.Message;
+import de.fenecon.fems.agents.TimingWheel;
 import de.fenecon.fems.agents.OnlineMonitoring.Message.DataMessage;
 import de.fenecon.fems.agents.OnlineMonitoring.Message.DataMessage.MethodType;
 import de.fenecon.fems.agents.OnlineMonitoring.Message.SystemMessage;
 import de.fenecon.fems.tools.FEMSYaler;
+import de.fenecon.fems.tools.JSONWriter;
 
 public class OnlineMonitoringAgent extends OnlineMonitoringAbstractAgent {
 	private Logger logger = LoggerFactory.getLogger(OnlineMonitoringAgent.class);
 	
+	public final static int DEFAULT_BATCH_MAX_COUNT = 50;
+	public final static int DEFAULT_BATCH_MAX_BYTES = 64 * 1024;
+	public final static long DEFAULT_BATCH_LATENCY = 500; // ms
+	public final static int DEFAULT_IN_FLIGHT_WINDOW = 4;
+	public final static int DEFAULT_MAILBOX_CAPACITY = 10000;
+	public final static long DEFAULT_METRICS_INTERVAL = 60 * 60 * 1000; // ms
+	
 	private final OnlineMonitoringCacheAgent cacheAgent;
+	private final FreshnessTracer tracer = FreshnessTracer.getFreshnessTracer();
+	private volatile int batchMaxCount = DEFAULT_BATCH_MAX_COUNT;
+	private volatile int batchMaxBytes = DEFAULT_BATCH_MAX_BYTES;
+	private volatile long batchLatency = DEFAULT_BATCH_LATENCY;
+	private volatile int inFlightWindow = DEFAULT_IN_FLIGHT_WINDOW;
+	private volatile DeltaEncoder deltaEncoder = null;
+	private volatile long metricsInterval = DEFAULT_METRICS_INTERVAL;
+	private final Message flushBatchMessage = new Message();
+	private final Message reportMetricsMessage = new Message();
+	private TimingWheel.Timeout reportMetricsTimer = null;
+	private final JSONWriter writer = new JSONWriter(); // only used by the agent thread
+	
+	/* Batch that is being collected (only used by the agent thread); requests 
+	 * are serialized once, the records are sent and cached as they are */
+	private List<byte[]> batchRecords = new ArrayList<byte[]>();
+	private List<DataMessage> batchMessages = new ArrayList<DataMessage>();
+	private List<JSONRPC2Request> batchFullRequests = new ArrayList<JSONRPC2Request>(); // null if not delta encoded
+	private List<byte[]> batchFullRecords = new ArrayList<byte[]>(); // null if delta encoded
+	private List<Long> batchTimestamps = new ArrayList<Long>();
+	private int batchBytes = 0;
+	private long batchDeadline = 0; // System.nanoTime(), like the timer of flushBatchMessage
+	
+	/* Batches that were handed to the sender, in submission order (only used by the agent thread) */
+	private final ArrayDeque<PendingBatch> pendingBatches = new ArrayDeque<PendingBatch>();
+	private ExecutorService sender = null;
+	
+	private static class PendingBatch {
+		private final List<DataMessage> messages;
+		private final List<JSONRPC2Request> fullRequests;
+		private final List<byte[]> fullRecords;
+		private final List<Long> timestamps;
+		private final Future<JSONRPC2Response[]> responses;
+		private PendingBatch(List<DataMessage> messages, List<JSONRPC2Request> fullRequests, List<byte[]> fullRecords, 
+				List<Long> timestamps, Future<JSONRPC2Response[]> responses) {
+			this.messages = messages;
+			this.fullRequests = fullRequests;
+			this.fullRecords = fullRecords;
+			this.timestamps = timestamps;
+			this.responses = responses;
+		}
+	}
 	
 	/**
 	 * {@inheritDoc}
@@ -26,28 +93,351 @@ public class OnlineMonitoringAgent extends OnlineMonitoringAbstractAgent {
 	public OnlineMonitoringAgent(String name, OnlineMonitoringCacheAgent cacheAgent) {
 		super(name);
 		this.cacheAgent = cacheAgent;
+		// if the mailbox is full, data goes directly to the cache
+		setBatchLimit(DEFAULT_BATCH_MAX_COUNT);
+		setMailbox(DEFAULT_MAILBOX_CAPACITY, Mailbox.OverflowPolicy.SPILL);
+		// one lane per MethodType, so that system messages do not wait behind bulk data
+		messages.configureLanes(MethodType.getWeights(), new Mailbox.LaneSelector() {
+			@Override
+			public int getLane(Message message) {
+				if(message instanceof DataMessage && ((DataMessage)message).getMethodType() != null) {
+					return ((DataMessage)message).getMethodType().ordinal();
+				}
+				return MethodType.SYSTEM.ordinal(); // timers
+			}
+		});
+		messages.setSpillHandler(new Mailbox.SpillHandler() {
+			@Override
+			public void spill(Message message) {
+				if(message instanceof DataMessage) {
+					OnlineMonitoringAgent.this.cacheAgent.sendLater(
+							prepareForSending((DataMessage)message));
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Set the limits for combining messages into one JSON-RPC batch
+	 * 
+	 * @param maxCount maximum number of requests per batch
+	 * @param maxBytes a batch is sent as soon as its requests reach this size
+	 * @param latency maximum time in ms to wait for more messages after the first one
+	 */
+	public void setBatchLimits(int maxCount, int maxBytes, long latency) {
+		this.batchMaxCount = maxCount;
+		this.batchMaxBytes = maxBytes;
+		this.batchLatency = latency;
+		setBatchLimit(maxCount);
+	}
+	
+	/**
+	 * Set the maximum number of batches that are sent at the same time; as
+	 * many more wait for a free slot, further batches are cached.
+	 * Needs to be set before the agent is started.
+	 * 
+	 * @param inFlightWindow
+	 */
+	public void setInFlightWindow(int inFlightWindow) {
+		this.inFlightWindow = inFlightWindow;
+	}
+	
+	/**
+	 * Enable or disable delta encoding of states. Needs to be set before the
+	 * agent is started.
+	 * 
+	 * @param enabled
+	 * @param keyframeInterval number of delta requests per method before a full snapshot is sent
+	 */
+	public void setDeltaEncoding(boolean enabled, int keyframeInterval) {
+		this.deltaEncoder = enabled ? new DeltaEncoder(keyframeInterval) : null;
+	}
+	
+	/**
+	 * Set the interval for sending the runtime metrics of all agents as
+	 * system message. Needs to be set before the agent is started.
+	 * 
+	 * @param metricsInterval interval in ms; 0 to disable
+	 */
+	public void setMetricsInterval(long metricsInterval) {
+		this.metricsInterval = metricsInterval;
 	}
 	
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void foreverLoop() throws InterruptedException {
-		Message message = messages.poll(); // wait for new message
-		if(message == null) return;
-		
+	protected boolean message(Message message) {
 		if(message instanceof DataMessage) {
-			JSONRPC2Request request = ((DataMessage)message).getJsonRpcRequest();
-			request = prepareForSending(request);
+			DataMessage dataMessage = (DataMessage)message;
+			tracer.record(dataMessage.getMethodType(), FreshnessTracer.Stage.ENQUEUE, dataMessage.getTimestamp());
+			if(isShuttingDown()) { // no more intake; keep the data for the next run
+				cacheAgent.sendLater(prepareForSending(dataMessage));
+				return false;
+			}
+		}
+		return super.message(message);
+	}
+	
+	/**
+	 * Send the collected batch and wait for all batches in flight until the
+	 * deadline. Requests that were not acknowledged by then are cached; they
+	 * may arrive twice if their batch still completes.
+	 * 
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void onShutdown(long deadline) throws InterruptedException {
+		if(reportMetricsTimer != null) {
+			reportMetricsTimer.cancel();
+		}
+		if(!batchRecords.isEmpty()) {
+			sendBatch(); // never waits for the in-flight window
+		}
+		while(!pendingBatches.isEmpty()) {
+			try {
+				pendingBatches.peek().responses.get(Math.max(0, deadline - System.currentTimeMillis()), 
+						TimeUnit.MILLISECONDS);
+			} catch (ExecutionException e) {
+				// handled below
+			} catch (TimeoutException e) {
+				break;
+			}
+			handleCompletedBatches();
+		}
+		if(!pendingBatches.isEmpty()) {
+			logger.warn("Caching " + pendingBatches.size() + " batches that were not acknowledged in time");
+			for(PendingBatch batch : pendingBatches) {
+				batch.responses.cancel(true);
+				for(int i=0; i<batch.messages.size(); i++) {
+					sendLater(batch.messages.get(i), batch.fullRequests.get(i), batch.fullRecords.get(i));
+				}
+			}
+			pendingBatches.clear();
+		}
+		if(sender != null) {
+			sender.shutdownNow();
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void onStart() {
+		if(metricsInterval > 0) {
+			reportMetricsTimer = scheduleMessage(reportMetricsMessage, metricsInterval, metricsInterval);
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void onMessages(List<Message> batch) throws InterruptedException {
+		handleCompletedBatches();
+		for(Message message : batch) {
+			if(message == reportMetricsMessage) {
+				reportMetrics();
+			} else if(message instanceof DataMessage) {
+				addToBatch((DataMessage)message);
+				if(batchRecords.size() >= batchMaxCount || batchBytes >= batchMaxBytes) {
+					sendBatch();
+				}
+			}
+			// flushBatchMessage only wakes up the agent
+		}
+		if(!batchRecords.isEmpty() && System.nanoTime() - batchDeadline >= 0) {
+			sendBatch(); // latency window is over
+		}
+		handleCompletedBatches();
+	}
+	
+	/**
+	 * Convert a message and add it to the batch that is being collected. The
+	 * first request of a batch starts the latency window.
+	 * 
+	 * @param message
+	 */
+	private void addToBatch(DataMessage message) {
+		MethodType method = message.getMethodType();
+		tracer.record(method, FreshnessTracer.Stage.DEQUEUE, message.getTimestamp());
+		DeltaEncoder deltaEncoder = this.deltaEncoder;
+		JSONRPC2Request fullRequest = null;
+		JSONRPC2Request request = null;
+		if(deltaEncoder != null) {
+			fullRequest = prepareForSending(message);
+			request = deltaEncoder.encode(fullRequest);
+		}
+		writer.reset();
+		try {
+			if(request != null) {
+				writer.writeRequest(request);
+			} else { // without creating the JSONRPC2Request
+				message.writeRequest(writer, getExtraParams());
+			}
+		} catch (IllegalArgumentException e) {
+			logger.error("Dropping " + method + "-data: " + e.getMessage()); // it could never be sent
+			return;
+		}
+		byte[] record = writer.toByteArray();
+		if(batchRecords.isEmpty()) {
+			batchDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchLatency);
+			if(batchLatency > 0) {
+				scheduleMessage(flushBatchMessage, batchLatency);
+			}
+		}
+		batchRecords.add(record);
+		batchMessages.add(message);
+		batchFullRequests.add(fullRequest);
+		batchFullRecords.add(request == fullRequest ? record : null);
+		batchTimestamps.add(message.getTimestamp());
+		batchBytes += record.length;
+		tracer.record(method, FreshnessTracer.Stage.SERIALIZE, message.getTimestamp());
+	}
+	
+	/**
+	 * Send the collected batch without waiting for the response
+	 */
+	private void sendBatch() {
+		List<byte[]> records = batchRecords;
+		List<DataMessage> messages = batchMessages;
+		List<JSONRPC2Request> fullRequests = batchFullRequests;
+		List<byte[]> fullRecords = batchFullRecords;
+		List<Long> timestamps = batchTimestamps;
+		batchRecords = new ArrayList<byte[]>();
+		batchMessages = new ArrayList<DataMessage>();
+		batchFullRequests = new ArrayList<JSONRPC2Request>();
+		batchFullRecords = new ArrayList<byte[]>();
+		batchTimestamps = new ArrayList<Long>();
+		batchBytes = 0;
+		
+		// do not even try without apikey, if too many batches wait for the sender 
+		// or if the server is known to be unreachable
+		if(apikey == null || pendingBatches.size() >= 2 * inFlightWindow || !circuitBreaker.allowRequest()) {
+			for(int i=0; i<messages.size(); i++) {
+				sendLater(messages.get(i), fullRequests.get(i), fullRecords.get(i));
+			}
+			return;
+		}
+		
+		// requests above the bandwidth budget wait in the cache, oldest first; 
+		// the newer requests of the same type follow them, so that they stay in order
+		Set<MethodType> overBudget = EnumSet.noneOf(MethodType.class);
+		for(int i=0; i<records.size(); ) {
+			MethodType type = messages.get(i).getMethodType();
+			if(!overBudget.contains(type) && withinBudget(type.toString(), records.get(i))) {
+				i++;
+				continue;
+			}
+			overBudget.add(type);
+			sendLater(messages.get(i), fullRequests.get(i), fullRecords.get(i));
+			records.remove(i);
+			messages.remove(i);
+			fullRequests.remove(i);
+			fullRecords.remove(i);
+			timestamps.remove(i);
+		}
+		if(records.isEmpty()) {
+			circuitBreaker.releaseRequest();
+			return;
+		}
+		submit(records, messages, fullRequests, fullRecords, timestamps);
+	}
+	
+	/**
+	 * Hand a batch to the sender without blocking; while the in-flight window
+	 * is full, it waits in the queue of the sender. The agent is woken up when
+	 * the batch is done.
+	 * 
+	 * @param records serialized requests to be sent
+	 * @param messages the messages of the requests
+	 * @param fullRequests the same requests without delta encoding; null where they were not delta encoded
+	 * @param fullRecords the records of the full requests; null where they differ from the sent ones
+	 * @param timestamps times of the samples in ms
+	 */
+	private void submit(final List<byte[]> records, final List<DataMessage> messages, List<JSONRPC2Request> fullRequests, 
+			List<byte[]> fullRecords, final List<Long> timestamps) {
+		if(sender == null) {
+			sender = Executors.newFixedThreadPool(inFlightWindow, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, getName() + " sender");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		FutureTask<JSONRPC2Response[]> responses = new FutureTask<JSONRPC2Response[]>(new Callable<JSONRPC2Response[]>() {
+			@Override
+			public JSONRPC2Response[] call() throws IOException {
+				List<String> methods = new ArrayList<String>(messages.size());
+				for(int i=0; i<messages.size(); i++) {
+					tracer.record(messages.get(i).getMethodType(), FreshnessTracer.Stage.SEND, timestamps.get(i));
+					methods.add(messages.get(i).getMethodType().toString());
+				}
+				return sendBatchToOnlineMonitoring(records, methods);
+			}
+		}) {
+			@Override
+			protected void done() {
+				lock.release(); // wake up agent to handle the responses; isDone() is true by now
+			}
+		};
+		sender.execute(responses);
+		pendingBatches.add(new PendingBatch(messages, fullRequests, fullRecords, timestamps, responses));
+	}
+	
+	/**
+	 * Handle responses of completed batches in submission order; batches may
+	 * complete out of order, but a batch is only handled after all batches
+	 * submitted before it. Requests that failed are cached in full.
+	 * 
+	 * @throws InterruptedException
+	 */
+	private void handleCompletedBatches() throws InterruptedException {
+		while(!pendingBatches.isEmpty() && pendingBatches.peek().responses.isDone()) {
+			PendingBatch batch = pendingBatches.poll();
+			JSONRPC2Response[] responses;
 			try {
-				Map<?, ?> response = sendToOnlineMonitoring(request);
-				handleResponse(response);
-			} catch (IOException | JSONRPC2SessionException e) {
-				cacheAgent.sendLater(request);
+				responses = batch.responses.get();
+			} catch (ExecutionException e) {
+				logger.warn("Unable to send batch: " + e.getCause().getMessage());
+				circuitBreaker.recordFailure();
+				for(int i=0; i<batch.messages.size(); i++) {
+					sendLater(batch.messages.get(i), batch.fullRequests.get(i), batch.fullRecords.get(i));
+				}
+				continue;
+			}
+			circuitBreaker.recordSuccess();
+			for(int i=0; i<batch.messages.size(); i++) {
+				MethodType method = batch.messages.get(i).getMethodType();
+				try {
+					Map<?, ?> response = evaluateResponse(method.toString(), batch.timestamps.get(i), responses[i]);
+					tracer.record(method, FreshnessTracer.Stage.ACK, batch.timestamps.get(i));
+					if(deltaEncoder != null && batch.fullRequests.get(i) != null) {
+						deltaEncoder.acknowledge(batch.fullRequests.get(i), response);
+					}
+					handleResponse(response);
+				} catch (IOException e) {
+					logger.warn(e.getMessage());
+					sendLater(batch.messages.get(i), batch.fullRequests.get(i), batch.fullRecords.get(i));
+				}
 			}
 		}
 	}
 	
+	/**
+	 * Send the runtime metrics of all agents as system message
+	 */
+	private void reportMetrics() {
+		String report = "Agent metrics:\n" + AgentRuntime.getAgentRuntime().getMetricsReport()
+				+ "\nFreshness:\n" + tracer.getReport()
+				+ "\nBandwidth: " + bandwidthGovernor;
+		logger.info(report);
+		sendSystemMessage(report);
+	}
+	
 	/** Send data, taking current time as timestamp
 	 * 
 	 * be aware, that the states need to be transformed to be valid for JSON/InfluxDB:
@@ -107,9 +497,28 @@ public class OnlineMonitoringAgent extends OnlineMonitoringAbstractAgent {
     	}*/
 	}
 	
-	/** Prepare JSONRPC2Request for sending */
-	protected JSONRPC2Request prepareForSending(JSONRPC2Request request) {
-		request.getNamedParams().put("apikey", apikey);
-		return request;
+	/** Create the JSONRPC2Request for sending a message, including the apikey */
+	protected JSONRPC2Request prepareForSending(DataMessage message) {
+		return message.toJsonRpcRequest(getExtraParams());
+	}
+	
+	/** Parameters that are added to every message */
+	private Map<String, Object> getExtraParams() {
+		return Collections.<String, Object>singletonMap("apikey", apikey);
+	}
+	
+	/**
+	 * Hand a request of a batch to the cache agent; as record, unless it was delta encoded
+	 * 
+	 * @param message
+	 * @param fullRequest request without delta encoding or null
+	 * @param fullRecord record of the full request or null
+	 */
+	private void sendLater(DataMessage message, JSONRPC2Request fullRequest, byte[] fullRecord) {
+		if(fullRecord != null) {
+			cacheAgent.sendLater(message.getMethodType(), message.getTimestamp(), fullRecord);
+		} else {
+			cacheAgent.sendLater(fullRequest);
+		}
 	}
 }
@@ -1,19 +1,43 @@
 package de.fenecon.fems.agents.OnlineMonitoring;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
-import com.thetransactioncompany.jsonrpc2.client.JSONRPC2SessionException;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
 
+import de.fenecon.fems.agents.AgentRuntime;
+import de.fenecon.fems.agents.Message;
+import de.fenecon.fems.agents.TimingWheel;
+import de.fenecon.fems.agents.OnlineMonitoring.Message.SystemMessage;
+import de.fenecon.fems.agents.OnlineMonitoring.Message.DataMessage.MethodType;
 import de.fenecon.fems.tools.JSONRPC2RequestCache;
+import de.fenecon.fems.tools.JSONWriter;
 
 public class OnlineMonitoringCacheAgent extends OnlineMonitoringAbstractAgent {
 	private Logger logger = LoggerFactory.getLogger(OnlineMonitoringCacheAgent.class);
 	
+	private final static int MAX_BATCH_COUNT = 100;
+	private final static long MAX_BATCH_BYTES = 256 * 1024;
+	private final static int MAX_ROLLUP_COUNT = 2000; // requests read at once for a rollup
+	private final static long MAX_ROLLUP_BYTES = 2 * 1024 * 1024;
+	private final static long NO_APIKEY_DELAY = 10 * 1000; // ms
+	
+	private final FreshnessTracer tracer = FreshnessTracer.getFreshnessTracer();
 	private JSONRPC2RequestCache requestCache = null;
+	private TimingWheel.Timeout retryTimer = null;
+	private volatile Rollup rollup = null;
+	private long retentionMaxBytes = 0;
+	private long retentionMaxAge = 0;
+	private long retentionMinFreeSpace = JSONRPC2RequestCache.DEFAULT_MIN_FREE_SPACE;
+	private int memoryMaxCount = JSONRPC2RequestCache.DEFAULT_MEMORY_MAX_COUNT;
+	private long memoryMaxBytes = JSONRPC2RequestCache.DEFAULT_MEMORY_MAX_BYTES;
+	private long memoryMaxAge = JSONRPC2RequestCache.DEFAULT_MEMORY_MAX_AGE;
 	
 	/**
 	 * {@inheritDoc}
@@ -22,15 +46,56 @@ public class OnlineMonitoringCacheAgent extends OnlineMonitoringAbstractAgent {
 		super(name);
 	}
 	
+	/**
+	 * Combine old cached data before it is sent
+	 * 
+	 * @param age data older than this (in ms) is combined; 0 to send everything at full resolution
+	 * @param interval length in ms of the intervals that are combined into one request
+	 */
+	public void setRollup(long age, long interval) {
+		this.rollup = age > 0 && interval > 0 ? new Rollup(age, interval) : null;
+	}
+	
+	/**
+	 * Limit the cache; evicted data is reported with a system message
+	 * 
+	 * @param maxBytes maximum size of the cache in bytes; 0 for no limit
+	 * @param maxAge maximum age of cached data in ms; 0 for no limit
+	 * @param minFreeSpace minimum usable disk space in bytes; 0 for no limit
+	 */
+	public synchronized void setRetention(long maxBytes, long maxAge, long minFreeSpace) {
+		this.retentionMaxBytes = maxBytes;
+		this.retentionMaxAge = maxAge;
+		this.retentionMinFreeSpace = minFreeSpace;
+		if(requestCache != null) {
+			requestCache.setRetention(maxBytes, maxAge, minFreeSpace);
+		}
+	}
+	
+	/**
+	 * Keep recent data in memory, so that short outages cause no disk I/O
+	 * 
+	 * @param maxCount maximum number of requests in memory; 0 to write everything to disk directly
+	 * @param maxBytes maximum size of the requests in memory; 0 for no limit
+	 * @param maxAge data older than this (in ms) is written to disk; 0 for no limit
+	 */
+	public synchronized void setMemoryLimits(int maxCount, long maxBytes, long maxAge) {
+		this.memoryMaxCount = maxCount;
+		this.memoryMaxBytes = maxBytes;
+		this.memoryMaxAge = maxAge;
+		if(requestCache != null) {
+			requestCache.setMemoryLimits(maxCount, maxBytes, maxAge);
+		}
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void run() {
+	protected void onStart() {
 		if(!getRequestCache().isEmpty()) { // initialize JSON Cache
 			lock.release(); // immediately start sending if we have cached messages
 		}
-		super.run();
 	}
 	
 	/**
@@ -38,18 +103,180 @@ public class OnlineMonitoringCacheAgent extends OnlineMonitoringAbstractAgent {
 	 */
 	@Override
 	public void foreverLoop() throws InterruptedException {
-		Thread.sleep(1000); // wait for 1 second
-		if(!getRequestCache().isEmpty()) {
-			JSONRPC2Request request = requestCache.pop();
-			logger.info("Trying to send cached data");
-			try {
-				sendToOnlineMonitoring(request); // ignoring return message for cached messages
-			} catch (IOException | JSONRPC2SessionException e) {
-				sendLater(request);
+		while(messages.poll() != null); // wake-ups from the retry timer carry no data
+		getRequestCache().spill(); // data that waited too long in memory
+		reportEvictions();
+		if(getRequestCache().isEmpty()) return;
+		if(apikey == null) {
+			retryAfter(NO_APIKEY_DELAY); // not the server's fault; wait without tripping the circuit breaker
+			return;
+		}
+		long delay = circuitBreaker.getRetryDelay();
+		if(delay > 0) {
+			retryAfter(delay); // wait as long as the retry policy says
+			return;
+		}
+		if(!circuitBreaker.allowRequest()) {
+			retryAfter(1000); // another agent is sending the trial request
+			return;
+		}
+		// leave data without bandwidth budget in the cache
+		List<String> excluded = new ArrayList<String>();
+		for(MethodType type : MethodType.values()) {
+			if(!bandwidthGovernor.hasBudget(type)) {
+				excluded.add(type.toString());
 			}
-			if(!getRequestCache().isEmpty()) {
-				lock.release();
+		}
+		JSONRPC2RequestCache.Batch batch = requestCache.popBatch(MAX_BATCH_COUNT, MAX_BATCH_BYTES, excluded);
+		if(batch.isEmpty()) {
+			requestCache.ack(batch); // unreadable requests
+			circuitBreaker.releaseRequest(); // nothing was sent
+			// a read error or only excluded data: do not spin, try again later
+			retryAfter(excluded.isEmpty() ? 1000 : Math.max(1000, bandwidthGovernor.getRefillDelay()));
+			return;
+		}
+		// requests to send, each made of one or more requests of the batch
+		final List<byte[]> records = new ArrayList<byte[]>(batch.getRecords());
+		final List<String> methods = new ArrayList<String>();
+		List<Long> timestamps = new ArrayList<Long>();
+		List<List<Integer>> parts = new ArrayList<List<Integer>>();
+		for(int i=0; i<batch.size(); i++) {
+			methods.add(batch.getMethod(i));
+			timestamps.add(batch.getTimestamp(i));
+			parts.add(Collections.singletonList(i));
+		}
+		boolean[] handled = new boolean[batch.size()];
+		Rollup rollup = this.rollup;
+		if(rollup != null && rollup.hasOldRequests(batch)) {
+			// backlog of old data: take more at once and send it downsampled
+			requestCache.release(batch);
+			batch = requestCache.popBatch(MAX_ROLLUP_COUNT, MAX_ROLLUP_BYTES, excluded);
+			handled = new boolean[batch.size()];
+			List<JSONRPC2Request> requests = new ArrayList<JSONRPC2Request>(batch.size());
+			for(int i=0; i<batch.size(); i++) {
+				requests.add(batch.getRequest(i));
+				handled[i] = requests.get(i) == null; // unreadable; removed with the batch
+			}
+			parts.clear();
+			List<JSONRPC2Request> combined = rollup.apply(requests, parts);
+			logger.info("Combined " + batch.size() + " cached requests into " + combined.size());
+			records.clear();
+			methods.clear();
+			timestamps.clear();
+			// send no more than a normal batch; the parts of the rest stay at the head of the cache
+			long bytes = 0;
+			for(JSONRPC2Request request : combined) {
+				byte[] record = JSONWriter.toRecord(request);
+				if(records.size() >= MAX_BATCH_COUNT || (!records.isEmpty() && bytes + record.length > MAX_BATCH_BYTES)) {
+					break;
+				}
+				bytes += record.length;
+				records.add(record);
+				methods.add(request.getMethod());
+				Object timestamp = request.getNamedParams() != null ? request.getNamedParams().get("timestamp") : null;
+				timestamps.add(timestamp instanceof Number ? ((Number)timestamp).longValue() * 1000 : 0);
+			}
+			parts.subList(records.size(), parts.size()).clear();
+		}
+		// drop requests that cannot be sent; leave requests above the bandwidth budget at the head of the cache
+		for(int i=0; i<records.size(); ) {
+			if(!JSONWriter.isRecord(records.get(i))) {
+				// it would stay at the head of its lane forever
+				logger.error("Dropping cached " + methods.get(i) + "-request that cannot be sent");
+				for(int part : parts.get(i)) {
+					handled[part] = true;
+				}
+			} else if(withinBudget(methods.get(i), records.get(i))) {
+				i++;
+				continue;
 			}
+			records.remove(i);
+			methods.remove(i);
+			timestamps.remove(i);
+			parts.remove(i);
+		}
+		if(records.isEmpty()) {
+			requestCache.ack(batch, handled);
+			circuitBreaker.releaseRequest();
+			retryAfter(Math.max(1000, bandwidthGovernor.getRefillDelay()));
+			return;
+		}
+		logger.info("Trying to send " + records.size() + " cached requests");
+		JSONRPC2Response[] responses;
+		try {
+			responses = AgentRuntime.blockingIO(new AgentRuntime.BlockingIO<JSONRPC2Response[]>() {
+				@Override
+				public JSONRPC2Response[] call() throws IOException {
+					return sendBatchToOnlineMonitoring(records, methods);
+				}
+			});
+		} catch (IOException e) {
+			logger.info("Unable to send cached data: " + e.getMessage());
+			requestCache.ack(batch, handled); // everything readable stays at the head of the cache
+			circuitBreaker.recordFailure();
+			lock.release();
+			return;
+		}
+		// remove what was sent; requests that failed again or were not sent stay at the head of the cache
+		int failed = 0;
+		for(int i=0; i<records.size(); i++) {
+			try {
+				evaluateResponse(methods.get(i), timestamps.get(i), responses[i]); // ignoring return message for cached messages
+				tracer.record(MethodType.fromString(methods.get(i)), FreshnessTracer.Stage.ACK, timestamps.get(i));
+				for(int part : parts.get(i)) {
+					handled[part] = true;
+				}
+			} catch (IOException e) {
+				logger.info("Unable to send cached data: " + e.getMessage());
+				failed++;
+			}
+		}
+		requestCache.ack(batch, handled);
+		if(failed == records.size()) {
+			circuitBreaker.recordFailure(); // server rejects everything
+		} else {
+			circuitBreaker.recordSuccess();
+		}
+		if(!getRequestCache().isEmpty()) {
+			lock.release();
+		} else {
+			logger.info("All cached data was sent; " + transport);
+		}
+	}
+	
+	/**
+	 * Persist the cache; if the agent is still busy sending at the deadline,
+	 * the cache is at least committed to disk.
+	 * 
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean shutdown(long deadline) throws InterruptedException {
+		if(super.shutdown(deadline)) return true;
+		getRequestCache().commit();
+		return false;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void onShutdown(long deadline) {
+		if(retryTimer != null) {
+			retryTimer.cancel();
+		}
+		getRequestCache().close();
+		bandwidthGovernor.save();
+	}
+	
+	/**
+	 * Wake up again after a delay, unless a wake-up is already scheduled
+	 * 
+	 * @param delay delay in ms
+	 */
+	private void retryAfter(long delay) {
+		if(retryTimer == null || retryTimer.isDone()) {
+			retryTimer = scheduleMessage(new Message(), delay);
 		}
 	}
 	
@@ -58,15 +285,63 @@ public class OnlineMonitoringCacheAgent extends OnlineMonitoringAbstractAgent {
 	 * @param message
 	 */
 	public void sendLater(JSONRPC2Request request) {
-		getRequestCache().push(request);
-		lock.release();
+		sendLater(request, null);
+	}
+	
+	/**
+	 * Add a message to the Cache Agent
+	 * @param request
+	 * @param record the request as serialized by {@link JSONWriter}; null to serialize it here
+	 */
+	public void sendLater(JSONRPC2Request request, byte[] record) {
+		tracer.record(request, FreshnessTracer.Stage.CACHE);
+		if(record != null) {
+			getRequestCache().push(request.getMethod(), record);
+		} else {
+			getRequestCache().push(request);
+		}
+		reportEvictions();
+		if(lock.availablePermits() == 0) { // wake up, unless a wake-up is already pending
+			lock.release();
+		}
+	}
+	
+	/**
+	 * Add a serialized request to the Cache Agent
+	 * @param method
+	 * @param timestamp time of the sample in ms
+	 * @param record request written by {@link JSONWriter}
+	 */
+	public void sendLater(MethodType method, long timestamp, byte[] record) {
+		tracer.record(method, FreshnessTracer.Stage.CACHE, timestamp);
+		getRequestCache().push(method.toString(), record);
+		reportEvictions();
+		if(lock.availablePermits() == 0) { // wake up, unless a wake-up is already pending
+			lock.release();
+		}
 	}
 	
 	/** make sure we have a valid JSONRPC2Request Cache object */
-	private JSONRPC2RequestCache getRequestCache() {
+	private synchronized JSONRPC2RequestCache getRequestCache() {
 		if(requestCache == null) {
 			requestCache = new JSONRPC2RequestCache();
+			for(MethodType type : MethodType.values()) { // system messages before the backlog of data
+				requestCache.setWeight(type.toString(), type.getWeight());
+			}
+			requestCache.keepOnLowDiskSpace(MethodType.SYSTEM.toString());
+			requestCache.setMemoryLimits(memoryMaxCount, memoryMaxBytes, memoryMaxAge);
+			requestCache.setRetention(retentionMaxBytes, retentionMaxAge, retentionMinFreeSpace);
 		}
 		return requestCache;
 	}
+	
+	/** cache a system message about data that was evicted by the retention limits */
+	private void reportEvictions() {
+		String report = getRequestCache().takeEvictionReport();
+		if(report != null) {
+			logger.warn(report);
+			getRequestCache().push(new SystemMessage(report).toJsonRpcRequest(
+					Collections.<String, Object>singletonMap("apikey", apikey)));
+		}
+	}
 }
@@ -0,0 +1,413 @@
+/**
+ * Copyright (c) 2015 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package de.fenecon.fems.agents.OnlineMonitoring;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Long-lived HTTP(S) transport to online-monitoring, shared by all
+ * online-monitoring agents. Connections are kept alive and reused, TLS sessions
+ * are cached and connect/read timeouts are enforced.
+ *
+ * Request bodies above a size threshold are gzip-compressed as soon as the
+ * server announced support for it with an "Accept-Encoding: gzip" response
+ * header. If the server rejects a compressed request with HTTP 415, compression
+ * is turned off again.
+ *
+ * The network traffic of each exchange is estimated from the body sizes as
+ * sent, typical HTTP header sizes and one TLS handshake per new connection.
+ *
+ * @author Stefan Feilmeier
+ */
+public class OnlineMonitoringTransport {
+	private static Logger logger = LoggerFactory.getLogger(OnlineMonitoringTransport.class);
+
+	public final static int DEFAULT_CONNECT_TIMEOUT = 10000; // ms
+	public final static int DEFAULT_READ_TIMEOUT = 30000; // ms
+	public final static int DEFAULT_COMPRESSION_THRESHOLD = 1024; // bytes
+	private final static int TLS_SESSION_TIMEOUT = 24 * 60 * 60; // s
+	private final static String GZIP = "gzip";
+	private final static int HEADER_BYTES = 500; // request and response headers with TLS framing
+	private final static int HANDSHAKE_BYTES = 5000; // full TLS handshake with certificate chain
+	private final static ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+	private static OnlineMonitoringTransport transport = null;
+
+	public static synchronized OnlineMonitoringTransport getTransport() {
+		if(transport == null) {
+			transport = new OnlineMonitoringTransport(OnlineMonitoringAbstractAgent.ONLINE_MONITORING_URL);
+		}
+		return transport;
+	}
+
+	private final URL url;
+	private final SSLSocketFactory socketFactory;
+	private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+	private volatile boolean compression = true;
+	private volatile int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+	private volatile boolean serverAcceptsGzip = false;
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong connections = new AtomicLong();
+	private final AtomicLong handshakes = new AtomicLong();
+	private final AtomicLong compressedRequests = new AtomicLong();
+	private final AtomicLong uncompressedBytes = new AtomicLong();
+	private final AtomicLong sentBytes = new AtomicLong();
+	private final AtomicLong compressionTime = new AtomicLong();
+	private final AtomicLong networkBytes = new AtomicLong();
+	private final AtomicLong unchargedConnections = new AtomicLong(); // new connections not yet added to an exchange
+
+	public OnlineMonitoringTransport(URL url) {
+		this.url = url;
+		SSLSocketFactory factory;
+		try {
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(null, null, null);
+			context.getClientSessionContext().setSessionTimeout(TLS_SESSION_TIMEOUT);
+			factory = context.getSocketFactory();
+		} catch (GeneralSecurityException e) {
+			logger.warn("Unable to create TLS context, using default: " + e.getMessage());
+			factory = HttpsURLConnection.getDefaultSSLSocketFactory();
+		}
+		this.socketFactory = new CountingSocketFactory(factory);
+	}
+
+	/** Set connect and read timeout in ms */
+	public void setTimeouts(int connectTimeout, int readTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Enable or disable gzip compression of request bodies
+	 *
+	 * @param compression
+	 * @param threshold minimum body size in bytes to be compressed
+	 */
+	public void setCompression(boolean compression, int threshold) {
+		this.compression = compression;
+		this.compressionThreshold = threshold;
+	}
+
+	/**
+	 * Post a body to online-monitoring and return the response body
+	 *
+	 * @param body
+	 * @param contentType
+	 * @return response body
+	 * @throws IOException on connection errors or if the server does not answer with HTTP 200
+	 */
+	public byte[] post(byte[] body, String contentType) throws IOException {
+		return post(body, body.length, contentType);
+	}
+
+	/**
+	 * Post the beginning of a buffer to online-monitoring, e.g. the buffer of a
+	 * reused writer, and return the response body
+	 *
+	 * @param body
+	 * @param length number of bytes to be sent
+	 * @param contentType
+	 * @return response body
+	 * @throws IOException on connection errors or if the server does not answer with HTTP 200
+	 */
+	public byte[] post(byte[] body, int length, String contentType) throws IOException {
+		return exchange(body, length, contentType).getResponse();
+	}
+
+	/**
+	 * Post the beginning of a buffer to online-monitoring and return the
+	 * response body together with the estimated network traffic
+	 *
+	 * @param body
+	 * @param length number of bytes to be sent
+	 * @param contentType
+	 * @return response body and traffic
+	 * @throws IOException on connection errors or if the server does not answer with HTTP 200
+	 */
+	public Exchange exchange(byte[] body, int length, String contentType) throws IOException {
+		boolean gzip = compression && serverAcceptsGzip && length >= compressionThreshold;
+		Exchange exchange;
+		try {
+			exchange = post(body, length, contentType, gzip);
+		} catch (CompressionRejectedException e) {
+			logger.warn("Server does not accept compressed requests; disabling compression");
+			serverAcceptsGzip = false;
+			exchange = post(body, length, contentType, false);
+			exchange.bytes += e.bytes;
+		}
+		// handshakes of concurrent exchanges may be charged to this one; in total every one is charged once
+		exchange.bytes += unchargedConnections.getAndSet(0) * HANDSHAKE_BYTES;
+		networkBytes.addAndGet(exchange.bytes);
+		return exchange;
+	}
+
+	private Exchange post(byte[] body, int length, String contentType, boolean gzip) throws IOException {
+		requests.incrementAndGet();
+		uncompressedBytes.addAndGet(length);
+		if(gzip) {
+			body = compress(body, length);
+			length = body.length;
+			compressedRequests.incrementAndGet();
+		}
+		sentBytes.addAndGet(length);
+		HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+		if(connection instanceof HttpsURLConnection) {
+			((HttpsURLConnection)connection).setSSLSocketFactory(socketFactory);
+		}
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(readTimeout);
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(length);
+		connection.setRequestProperty("Content-Type", contentType);
+		connection.setRequestProperty("Connection", "keep-alive");
+		connection.setRequestProperty("Accept-Encoding", GZIP);
+		if(gzip) {
+			connection.setRequestProperty("Content-Encoding", GZIP);
+		}
+		try (OutputStream out = connection.getOutputStream()) {
+			out.write(body, 0, length);
+		}
+		int status = connection.getResponseCode();
+		String acceptEncoding = connection.getHeaderField("Accept-Encoding");
+		if(acceptEncoding != null && acceptEncoding.toLowerCase().contains(GZIP) && !serverAcceptsGzip) {
+			logger.info("Server accepts compressed requests");
+			serverAcceptsGzip = true;
+		}
+		if(status != HttpURLConnection.HTTP_OK) {
+			// read the error body completely, so that the connection can be reused
+			InputStream error = connection.getErrorStream();
+			if(error != null) {
+				try (InputStream in = error) {
+					readFully(in);
+				}
+			}
+			if(gzip && status == HttpURLConnection.HTTP_UNSUPPORTED_TYPE) {
+				throw new CompressionRejectedException(HEADER_BYTES + length);
+			}
+			throw new IOException("Server response: HTTP " + status);
+		}
+		InputStream response = connection.getInputStream();
+		if(GZIP.equalsIgnoreCase(connection.getContentEncoding())) {
+			response = new GZIPInputStream(response);
+		}
+		int contentLength = connection.getContentLength(); // as transferred, even if compressed
+		try (InputStream in = response) {
+			byte[] responseBody = readFully(in);
+			return new Exchange(responseBody, HEADER_BYTES + length + (contentLength >= 0 ? contentLength : responseBody.length));
+		}
+	}
+
+	/**
+	 * gzip-compress a request body and measure the CPU time needed for it
+	 */
+	private byte[] compress(byte[] body, int length) throws IOException {
+		boolean cpuTime = threadMXBean.isCurrentThreadCpuTimeSupported();
+		long start = cpuTime ? threadMXBean.getCurrentThreadCpuTime() : System.nanoTime();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length / 4 + 64);
+		try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+			{ def.setLevel(Deflater.BEST_SPEED); }
+		}) {
+			gzip.write(body, 0, length);
+		}
+		long end = cpuTime ? threadMXBean.getCurrentThreadCpuTime() : System.nanoTime();
+		compressionTime.addAndGet(end - start);
+		return out.toByteArray();
+	}
+
+	/** Number of requests posted */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/** Number of newly opened connections */
+	public long getConnections() {
+		return connections.get();
+	}
+
+	/** Number of requests that were sent over an already open connection */
+	public long getReusedConnections() {
+		return Math.max(0, requests.get() - connections.get());
+	}
+
+	/** Number of TLS handshakes */
+	public long getHandshakes() {
+		return handshakes.get();
+	}
+
+	/** Number of requests that were sent compressed */
+	public long getCompressedRequests() {
+		return compressedRequests.get();
+	}
+
+	/** Size of all request bodies before compression in bytes */
+	public long getUncompressedBytes() {
+		return uncompressedBytes.get();
+	}
+
+	/** Size of all request bodies as sent in bytes */
+	public long getSentBytes() {
+		return sentBytes.get();
+	}
+
+	/** Estimated network traffic of all successful exchanges in bytes */
+	public long getNetworkBytes() {
+		return networkBytes.get();
+	}
+
+	/** CPU time spent on compression in ns */
+	public long getCompressionTime() {
+		return compressionTime.get();
+	}
+
+	@Override
+	public String toString() {
+		return "requests: " + getRequests() + ", new connections: " + getConnections()
+				+ ", reused connections: " + getReusedConnections() + ", TLS handshakes: " + getHandshakes()
+				+ ", compressed requests: " + getCompressedRequests() + ", bytes: " + getSentBytes()
+				+ " of " + getUncompressedBytes() + ", estimated traffic: " + getNetworkBytes()
+				+ ", compression: " + getCompressionTime() / 1000000 + " ms";
+	}
+
+	/**
+	 * Response body of a request and the estimated network traffic of the exchange
+	 */
+	public static class Exchange {
+		private final byte[] response;
+		private long bytes;
+
+		private Exchange(byte[] response, long bytes) {
+			this.response = response;
+			this.bytes = bytes;
+		}
+
+		public byte[] getResponse() {
+			return response;
+		}
+
+		/** Estimated bytes sent and received, including headers and TLS handshakes */
+		public long getBytes() {
+			return bytes;
+		}
+	}
+
+	/**
+	 * The server does not accept a compressed request
+	 */
+	private static class CompressionRejectedException extends IOException {
+		private static final long serialVersionUID = 6530402356291370546L;
+		private final long bytes; // estimated traffic of the rejected exchange
+
+		private CompressionRejectedException(long bytes) {
+			this.bytes = bytes;
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * SSLSocketFactory that counts created sockets and completed handshakes
+	 */
+	private class CountingSocketFactory extends SSLSocketFactory {
+		private final SSLSocketFactory delegate;
+		private final HandshakeCompletedListener listener = new HandshakeCompletedListener() {
+			@Override
+			public void handshakeCompleted(HandshakeCompletedEvent event) {
+				handshakes.incrementAndGet();
+			}
+		};
+
+		private CountingSocketFactory(SSLSocketFactory delegate) {
+			this.delegate = delegate;
+		}
+
+		private Socket count(Socket socket) {
+			connections.incrementAndGet();
+			unchargedConnections.incrementAndGet();
+			if(socket instanceof SSLSocket) {
+				((SSLSocket)socket).addHandshakeCompletedListener(listener);
+			}
+			return socket;
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites() {
+			return delegate.getDefaultCipherSuites();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return delegate.getSupportedCipherSuites();
+		}
+
+		@Override
+		public Socket createSocket() throws IOException {
+			return count(delegate.createSocket());
+		}
+
+		@Override
+		public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+			return count(delegate.createSocket(s, host, port, autoClose));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			return count(delegate.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			return count(delegate.createSocket(host, port, localHost, localPort));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			return count(delegate.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+			return count(delegate.createSocket(address, port, localAddress, localPort));
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright (c) 2015 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package de.fenecon.fems.agents.OnlineMonitoring;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
+
+import de.fenecon.fems.tools.JSONRPC2RequestCache;
+
+/**
+ * Downsamples old cached data before it is uploaded: all requests of the same
+ * method whose timestamps fall into the same interval are combined into one.
+ * 
+ * The combined request carries the last value of every state in "states", so
+ * it is valid like any other request, and min/max/avg of the numeric states
+ * in the "rollup" parameter. Recent requests are passed on unchanged.
+ * 
+ * @author Stefan Feilmeier
+ */
+public class Rollup {
+	public final static String ROLLUP = "rollup";
+	
+	private final long age; // ms
+	private final long interval; // ms
+	
+	private static class Group {
+		private JSONRPC2Request request = null; // first part
+		private final List<Integer> parts = new ArrayList<Integer>(); // indexes of all parts
+		private Map<String, Object> params = null;
+		private long first = Long.MAX_VALUE;
+		private long last = Long.MIN_VALUE;
+		private int count = 0;
+		private final Map<String, Object> states = new HashMap<String, Object>();
+		private final Map<String, Double> min = new HashMap<String, Double>();
+		private final Map<String, Double> max = new HashMap<String, Double>();
+		private final Map<String, Double> sum = new HashMap<String, Double>();
+		private final Map<String, Integer> numbers = new HashMap<String, Integer>();
+	}
+	
+	/**
+	 * @param age requests older than this (in ms) are combined
+	 * @param interval length of a combined interval in ms
+	 */
+	public Rollup(long age, long interval) {
+		this.age = age;
+		this.interval = interval;
+	}
+	
+	/**
+	 * Check by their timestamps if any of the cached requests is old enough to
+	 * be combined, without parsing them. This is also true for requests that
+	 * were combined before; apply() passes those on unchanged.
+	 * 
+	 * @param batch
+	 * @return
+	 */
+	public boolean hasOldRequests(JSONRPC2RequestCache.Batch batch) {
+		long threshold = System.currentTimeMillis() - age;
+		for(int i=0; i<batch.size(); i++) {
+			if(batch.getTimestamp(i) > 0 && batch.getTimestamp(i) < threshold) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Combine old requests per method and interval
+	 * 
+	 * @param requests
+	 * @return requests in the original order; a combined request takes the place of its first part
+	 */
+	public List<JSONRPC2Request> apply(List<JSONRPC2Request> requests) {
+		return apply(requests, null);
+	}
+	
+	/**
+	 * Combine old requests per method and interval, and tell which requests
+	 * each result is made of
+	 * 
+	 * @param requests null entries are left out
+	 * @param parts filled with the indexes of the requests each result is made of; may be null
+	 * @return requests in the original order; a combined request takes the place of its first part
+	 */
+	public List<JSONRPC2Request> apply(List<JSONRPC2Request> requests, List<List<Integer>> parts) {
+		long threshold = System.currentTimeMillis() - age;
+		List<Object> result = new ArrayList<Object>(); // index of a JSONRPC2Request or key of a Group
+		Map<String, Group> groups = new LinkedHashMap<String, Group>();
+		for(int i=0; i<requests.size(); i++) {
+			JSONRPC2Request request = requests.get(i);
+			if(request == null) continue;
+			if(!isOld(request, threshold)) {
+				result.add(i);
+				continue;
+			}
+			Map<String, Object> params = request.getNamedParams();
+			long timestamp = ((Number)params.get("timestamp")).longValue() * 1000;
+			String key = request.getMethod() + "/" + (timestamp / interval);
+			Group group = groups.get(key);
+			if(group == null) {
+				group = new Group();
+				group.request = request;
+				groups.put(key, group);
+				result.add(key);
+			}
+			group.parts.add(i);
+			add(group, params, timestamp);
+		}
+		List<JSONRPC2Request> combined = new ArrayList<JSONRPC2Request>(result.size());
+		for(Object entry : result) {
+			if(entry instanceof Integer) {
+				combined.add(requests.get((Integer)entry));
+				if(parts != null) parts.add(Collections.singletonList((Integer)entry));
+			} else {
+				String key = (String)entry;
+				combined.add(toRequest(key.substring(0, key.lastIndexOf('/')), groups.get(key)));
+				if(parts != null) parts.add(groups.get(key).parts);
+			}
+		}
+		return combined;
+	}
+	
+	private boolean isOld(JSONRPC2Request request, long threshold) {
+		Map<String, Object> params = request.getNamedParams();
+		return params != null && params.get("timestamp") instanceof Number && params.get("states") instanceof Map<?, ?>
+				&& !params.containsKey(ROLLUP) // already combined
+				&& ((Number)params.get("timestamp")).longValue() * 1000 < threshold;
+	}
+	
+	private void add(Group group, Map<String, Object> params, long timestamp) {
+		group.count++;
+		group.first = Math.min(group.first, timestamp);
+		boolean latest = timestamp >= group.last;
+		if(latest) {
+			group.last = timestamp;
+			group.params = params;
+		}
+		for(Map.Entry<?, ?> state : ((Map<?, ?>)params.get("states")).entrySet()) {
+			String name = String.valueOf(state.getKey());
+			Object value = state.getValue();
+			if(latest || !group.states.containsKey(name)) {
+				group.states.put(name, value);
+			}
+			if(value instanceof Number) {
+				double number = ((Number)value).doubleValue();
+				Double min = group.min.get(name);
+				Double max = group.max.get(name);
+				Double sum = group.sum.get(name);
+				Integer numbers = group.numbers.get(name);
+				group.min.put(name, min == null ? number : Math.min(min, number));
+				group.max.put(name, max == null ? number : Math.max(max, number));
+				group.sum.put(name, sum == null ? number : sum + number);
+				group.numbers.put(name, numbers == null ? 1 : numbers + 1);
+			}
+		}
+	}
+	
+	private JSONRPC2Request toRequest(String method, Group group) {
+		if(group.count == 1) return group.request; // nothing to combine
+		HashMap<String, Object> avg = new HashMap<String, Object>();
+		for(Map.Entry<String, Double> sum : group.sum.entrySet()) {
+			avg.put(sum.getKey(), sum.getValue() / group.numbers.get(sum.getKey()));
+		}
+		HashMap<String, Object> rollup = new HashMap<String, Object>();
+		rollup.put("interval", interval / 1000);
+		rollup.put("count", group.count);
+		rollup.put("from", group.first / 1000);
+		rollup.put("min", new HashMap<String, Object>(group.min));
+		rollup.put("max", new HashMap<String, Object>(group.max));
+		rollup.put("avg", avg);
+		HashMap<String, Object> params = new HashMap<String, Object>(group.params);
+		params.put("states", new HashMap<String, Object>(group.states));
+		params.put(ROLLUP, rollup);
+		return new JSONRPC2Request(method, params, 0);
+	}
+}
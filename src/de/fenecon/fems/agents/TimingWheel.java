@@ -0,0 +1,238 @@
+/**
+ * Copyright (c) 2015 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package de.fenecon.fems.agents;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shared scheduler for delayed and periodic messages to agents, based on a
+ * hashed timing wheel: one thread advances a ring of buckets every tick and
+ * delivers the messages that are due into the mailboxes of their agents.
+ * Scheduling and cancelling are O(1); timers are accurate to one tick.
+ * 
+ * Delivery never blocks the wheel thread and bypasses the overflow policy of
+ * the mailbox: if it is full, a one-time message is retried shortly after,
+ * a periodic message waits for its next period.
+ * 
+ * Short tasks that do not block (e.g. updating statistics) can be run on the
+ * wheel thread directly.
+ * 
+ * @author Stefan Feilmeier
+ */
+public class TimingWheel {
+	private static Logger logger = LoggerFactory.getLogger(TimingWheel.class);
+	
+	public final static long DEFAULT_TICK = 10; // ms
+	public final static int DEFAULT_WHEEL_SIZE = 512; // buckets; must be a power of two
+	private final static long RETRY_DELAY = 100; // ms; for messages to a full mailbox
+	
+	private static TimingWheel timingWheel = null;
+	
+	public static synchronized TimingWheel getTimingWheel() {
+		if(timingWheel == null) {
+			timingWheel = new TimingWheel(DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+		}
+		return timingWheel;
+	}
+	
+	/**
+	 * A scheduled message
+	 */
+	public static class Timeout {
+		private final Agent agent;
+		private final Message message;
+		private final Runnable task; // instead of agent and message
+		private final long period; // ns; 0 if not periodic
+		private long deadline; // ns since start of the wheel
+		private long rounds;
+		private Timeout next;
+		private volatile boolean cancelled = false;
+		private volatile boolean done = false;
+		private boolean retried = false;
+		
+		private Timeout(Agent agent, Message message, Runnable task, long deadline, long period) {
+			this.agent = agent;
+			this.message = message;
+			this.task = task;
+			this.deadline = deadline;
+			this.period = period;
+		}
+		
+		/** Do not deliver the message (anymore) */
+		public void cancel() {
+			cancelled = true;
+		}
+		
+		public boolean isCancelled() {
+			return cancelled;
+		}
+		
+		/** @return true if the message was delivered (for the last time) or cancelled */
+		public boolean isDone() {
+			return done || cancelled;
+		}
+	}
+	
+	private final long tickNanos;
+	private final int mask;
+	private final Timeout[] buckets;
+	private final ConcurrentLinkedQueue<Timeout> newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	private final long startTime = System.nanoTime();
+	private long tick = 0; // only used by the wheel thread
+	
+	private TimingWheel(long tick, int wheelSize) {
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tick);
+		this.mask = wheelSize - 1;
+		this.buckets = new Timeout[wheelSize];
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				TimingWheel.this.run();
+			}
+		}, "TimingWheel");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Deliver a message to an agent after a delay
+	 * 
+	 * @param agent
+	 * @param message
+	 * @param delay delay in ms
+	 * @return handle to cancel the timer
+	 */
+	public Timeout schedule(Agent agent, Message message, long delay) {
+		return add(new Timeout(agent, message, null, now() + TimeUnit.MILLISECONDS.toNanos(delay), 0));
+	}
+	
+	/**
+	 * Deliver a message to an agent periodically, until it is cancelled. The
+	 * same message instance is delivered every time.
+	 * 
+	 * @param agent
+	 * @param message
+	 * @param initialDelay delay in ms before the first delivery
+	 * @param period time in ms between deliveries
+	 * @return handle to cancel the timer
+	 */
+	public Timeout schedulePeriodic(Agent agent, Message message, long initialDelay, long period) {
+		return add(new Timeout(agent, message, null, now() + TimeUnit.MILLISECONDS.toNanos(initialDelay),
+				Math.max(tickNanos, TimeUnit.MILLISECONDS.toNanos(period))));
+	}
+	
+	/**
+	 * Run a task on the wheel thread periodically, until it is cancelled. The
+	 * task must be short and must not block, as it delays all other timers.
+	 * 
+	 * @param task
+	 * @param initialDelay delay in ms before the first run
+	 * @param period time in ms between runs
+	 * @return handle to cancel the timer
+	 */
+	public Timeout schedulePeriodic(Runnable task, long initialDelay, long period) {
+		return add(new Timeout(null, null, task, now() + TimeUnit.MILLISECONDS.toNanos(initialDelay),
+				Math.max(tickNanos, TimeUnit.MILLISECONDS.toNanos(period))));
+	}
+	
+	private Timeout add(Timeout timeout) {
+		newTimeouts.add(timeout); // moved into the wheel by the wheel thread
+		return timeout;
+	}
+	
+	private long now() {
+		return System.nanoTime() - startTime;
+	}
+	
+	private void run() {
+		while(true) {
+			try {
+				long sleep = (tick + 1) * tickNanos - now();
+				if(sleep > 0) {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				}
+				Timeout timeout;
+				while((timeout = newTimeouts.poll()) != null) {
+					insert(timeout);
+				}
+				expire((int)(tick & mask));
+				tick++;
+			} catch (InterruptedException e) {
+				logger.warn("TimingWheel was interrupted");
+			} catch (RuntimeException e) {
+				logger.error("Error in TimingWheel: " + e.getMessage(), e);
+			}
+		}
+	}
+	
+	private void insert(Timeout timeout) {
+		if(timeout.cancelled) return;
+		long ticks = Math.max(tick, timeout.deadline / tickNanos);
+		timeout.rounds = (ticks - tick) / buckets.length;
+		int bucket = (int)(ticks & mask);
+		timeout.next = buckets[bucket];
+		buckets[bucket] = timeout;
+	}
+	
+	private void expire(int bucket) {
+		Timeout previous = null;
+		Timeout timeout = buckets[bucket];
+		while(timeout != null) {
+			Timeout next = timeout.next;
+			if(!timeout.cancelled && timeout.rounds > 0) {
+				timeout.rounds--;
+				previous = timeout;
+			} else {
+				// remove from bucket
+				if(previous == null) {
+					buckets[bucket] = next;
+				} else {
+					previous.next = next;
+				}
+				timeout.next = null;
+				if(!timeout.cancelled) {
+					deliver(timeout);
+				}
+			}
+			timeout = next;
+		}
+	}
+	
+	private void deliver(Timeout timeout) {
+		boolean delivered = true;
+		try {
+			if(timeout.task != null) {
+				timeout.task.run();
+			} else if(!timeout.agent.isShuttingDown()) {
+				delivered = timeout.agent.tryMessage(timeout.message);
+			}
+		} finally {
+			if(!delivered && timeout.period == 0 && !timeout.cancelled) {
+				if(!timeout.retried) {
+					logger.warn("Mailbox of " + timeout.agent.getName() + " is full; retrying timer message");
+					timeout.retried = true;
+				}
+				timeout.deadline = now() + TimeUnit.MILLISECONDS.toNanos(RETRY_DELAY);
+				newTimeouts.add(timeout);
+			} else if(timeout.period > 0 && !timeout.cancelled) {
+				if(!delivered) {
+					logger.warn("Mailbox of " + timeout.agent.getName() + " is full; skipping periodic timer message");
+				}
+				timeout.deadline += timeout.period;
+				newTimeouts.add(timeout);
+			} else {
+				timeout.done = true;
+			}
+		}
+	}
+}
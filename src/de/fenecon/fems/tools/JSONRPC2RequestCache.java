@@ -1,6 +1,6 @@
 /**
  * Copyright (c) 2014 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
- * 
+ *
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -8,16 +8,25 @@
  */
 package de.fenecon.fems.tools;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.util.Stack;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,68 +34,820 @@ import org.slf4j.LoggerFactory;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2ParseException;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
 
-//TODO: this implementation is based on cache files. A nice implementation would use MapDB
-
 /*
- * Cache JSONRPC2Requests in files
+ * Cache JSONRPC2Requests in segmented append-only logs, one lane (log) per
+ * JSON-RPC method. Lanes are read in weighted round-robin, so that important
+ * requests are not stuck behind a large backlog of other data.
+ *
+ * Requests are stored as serialized by {@link JSONWriter}; they are read back
+ * as records that can be sent as they are, without parsing them.
+ *
+ * Retention limits keep the cache from filling the disk: if a limit is
+ * exceeded, whole segments are evicted - the oldest segments of the lanes
+ * with the lowest weight first. To free disk space, the last
+ * MIN_RETAINED_BYTES and the lanes set by keepOnLowDiskSpace() are spared.
+ *
+ * New requests are kept in memory first, so a short outage causes no disk
+ * I/O. They are moved ("spilled") to the logs, oldest first, when the memory
+ * tier is full, when they are older than its age limit, on commit() and on
+ * close(). Requests in memory are lost if the process dies. Requests pushed
+ * after close() are written and committed to their logs one by one.
  */
 public class JSONRPC2RequestCache {
 	private Logger logger = LoggerFactory.getLogger(JSONRPC2RequestCache.class);
-	
-	private final Stack<Path> stack = new Stack<Path>();
-	private final String cacheFilePrefix = "cache.";
-	private final Charset defaultCharset = StandardCharsets.ISO_8859_1;
-				
+
+	private final String legacyCacheFilePrefix = "cache.";
+	private final Path cacheDirectory = Paths.get(System.getProperty("user.dir"), "cache");
+	private final static String DEFAULT_LANE = ""; // requests cached before there were lanes
+	public final static long DEFAULT_MIN_FREE_SPACE = 0; // bytes; no limit
+	private final static long MIN_RETAINED_BYTES = 1024 * 1024; // never evicted to free disk space
+	private final static long RETENTION_CHECK_INTERVAL = 60 * 1000; // ms; for age and free disk space
+	public final static int DEFAULT_MEMORY_MAX_COUNT = 1000;
+	public final static long DEFAULT_MEMORY_MAX_BYTES = 1024 * 1024;
+	public final static long DEFAULT_MEMORY_MAX_AGE = 60 * 1000; // ms
+
+	/** A request in the memory tier */
+	private static class Pending {
+		private final byte[] record;
+		private final long time; // when it was pushed, in ms
+		private final long timestamp; // time of the sample in ms; 0 if unknown
+		private boolean taken = false; // part of the outstanding batch
+		private Pending(byte[] record, long time, long timestamp) {
+			this.record = record;
+			this.time = time;
+			this.timestamp = timestamp;
+		}
+	}
+
+	private static class Lane {
+		private final String name;
+		private final SegmentedLog log;
+		private final List<Pending> memory = new ArrayList<Pending>(); // newer than everything in the log
+		private final Set<SegmentedLog.Position> done = new HashSet<SegmentedLog.Position>(); // ends of handled requests after the ack position
+		private int weight = 1;
+		private Lane(String name, SegmentedLog log) {
+			this.name = name;
+			this.log = log;
+		}
+	}
+
+	private final Map<String, Lane> lanes = new HashMap<String, Lane>();
+	private final List<Lane> laneOrder = new ArrayList<Lane>();
+	private final Map<String, Integer> weights = new HashMap<String, Integer>();
+	private final Set<String> keptOnLowDiskSpace = new HashSet<String>();
+	private int currentLane = 0;
+	private int credit = 0;
+	private boolean closed = false;
+	private final JSONWriter writer = new JSONWriter();
+	private long maxBytes = 0;
+	private long maxAge = 0;
+	private long minFreeSpace = DEFAULT_MIN_FREE_SPACE;
+	private long lastRetentionCheck = 0;
+	private long evictedSegments = 0;
+	private long evictedBytes = 0;
+	private final Map<String, Long> reportedEvictions = new LinkedHashMap<String, Long>(); // bytes per lane and reason
+	private int memoryMaxCount = DEFAULT_MEMORY_MAX_COUNT;
+	private long memoryMaxBytes = DEFAULT_MEMORY_MAX_BYTES;
+	private long memoryMaxAge = DEFAULT_MEMORY_MAX_AGE;
+	private int memoryCount = 0;
+	private long memoryBytes = 0;
+
 	public JSONRPC2RequestCache() {
-		// Load all cached paths on start up
-		try (DirectoryStream<Path> cacheFiles = Files.newDirectoryStream(
-				Paths.get(System.getProperty("user.dir")), cacheFilePrefix + '*')) {
-		    for(Path cacheFile : cacheFiles) {
-		    	stack.push(cacheFile);
-		    }
-		} catch(Exception e) {
-			logger.error("Unable to load cached files: " + e.getMessage());
+		openLane(DEFAULT_LANE);
+		try (DirectoryStream<Path> directories = Files.newDirectoryStream(cacheDirectory)) {
+			for(Path directory : directories) {
+				if(Files.isDirectory(directory)) {
+					openLane(directory.getFileName().toString());
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Unable to list cache lanes in " + cacheDirectory + ": " + e.getMessage());
 		}
+		importLegacyCacheFiles();
 	}
 
-	public JSONRPC2Request pop() {
-		synchronized (stack) {
-			Path cacheFile = stack.pop();
-	    	String jsonString = "";
-	    	JSONRPC2Request request = null;
-	    	try {
-				for(String line : Files.readAllLines(cacheFile, defaultCharset)) {
-					jsonString += line;
+	/**
+	 * A batch of cached requests, oldest first within each lane.
+	 * The requests stay in the cache until the batch is acknowledged.
+	 */
+	public static class Batch {
+		private final List<byte[]> records = new ArrayList<byte[]>();
+		private final List<String> methods = new ArrayList<String>();
+		private final List<Long> timestamps = new ArrayList<Long>();
+		private final List<Lane> requestLanes = new ArrayList<Lane>();
+		private final List<SegmentedLog.Position> positions = new ArrayList<SegmentedLog.Position>(); // null if from memory
+		private final List<Pending> pendings = new ArrayList<Pending>(); // null if from the log
+		private final List<Pending> taken = new ArrayList<Pending>(); // everything taken from memory, also if unreadable
+		private final Map<Lane, SegmentedLog.Position> ends = new HashMap<Lane, SegmentedLog.Position>();
+		private long bytes = 0;
+		/** @return serialized requests */
+		public List<byte[]> getRecords() {
+			return Collections.unmodifiableList(records);
+		}
+		public String getMethod(int i) {
+			return methods.get(i);
+		}
+		/** @return time of the sample in ms; 0 if unknown */
+		public long getTimestamp(int i) {
+			return timestamps.get(i);
+		}
+		/**
+		 * Parse a request of the batch
+		 *
+		 * @param i
+		 * @return request or null if it cannot be parsed
+		 */
+		public JSONRPC2Request getRequest(int i) {
+			try {
+				return JSONReader.parseRequest(records.get(i));
+			} catch (JSONRPC2ParseException e) {
+				return null;
+			}
+		}
+		/**
+		 * Parse the requests; records that cannot be parsed are left out
+		 * 
+		 * @return
+		 */
+		public List<JSONRPC2Request> getRequests() {
+			List<JSONRPC2Request> requests = new ArrayList<JSONRPC2Request>(records.size());
+			for(int i=0; i<records.size(); i++) {
+				JSONRPC2Request request = getRequest(i);
+				if(request != null) { // else skip it; it will be removed together with the batch
+					requests.add(request);
 				}
-				request = JSONRPC2Request.parse(jsonString);
-			} catch (IOException | JSONRPC2ParseException e1) {
-				logger.error("Error reading temporary file " + cacheFile + ": " + e1.getMessage());
 			}
+			return requests;
+		}
+		public int size() {
+			return records.size();
+		}
+		public long getBytes() {
+			return bytes;
+		}
+		public boolean isEmpty() {
+			return records.isEmpty();
+		}
+	}
+
+	/**
+	 * Set the share of a method when reading batches: per round, up to weight
+	 * requests are taken from its lane. The default weight is 1.
+	 *
+	 * @param method
+	 * @param weight
+	 */
+	public synchronized void setWeight(String method, int weight) {
+		weights.put(method, Math.max(1, weight));
+		Lane lane = lanes.get(method);
+		if(lane != null) {
+			lane.weight = Math.max(1, weight);
+		}
+	}
+
+	/**
+	 * Never evict the requests of a method to free disk space; the size and
+	 * age limits still apply to them
+	 *
+	 * @param method
+	 */
+	public synchronized void keepOnLowDiskSpace(String method) {
+		keptOnLowDiskSpace.add(method);
+	}
+
+	/**
+	 * Get cached requests from all lanes in weighted round-robin. They are not
+	 * removed from the cache before {@link #ack(Batch)} is called;
+	 * {@link #release(Batch)} gives them back for the next call. Only one batch
+	 * may be outstanding at a time.
+	 *
+	 * @param maxCount maximum number of requests in the batch
+	 * @param maxBytes maximum size of the serialized requests; at least one request is always returned
+	 * @return batch, which is empty if nothing is cached
+	 */
+	public synchronized Batch popBatch(int maxCount, long maxBytes) {
+		return popBatch(maxCount, maxBytes, Collections.<String>emptySet());
+	}
+
+	/**
+	 * Get cached requests like {@link #popBatch(int, long)}, but skip the lanes
+	 * of some methods
+	 *
+	 * @param maxCount
+	 * @param maxBytes
+	 * @param excludedMethods methods whose requests stay in the cache for now
+	 * @return
+	 */
+	public synchronized Batch popBatch(int maxCount, long maxBytes, Collection<String> excludedMethods) {
+		spill(false);
+		Batch batch = new Batch();
+		try {
+			Lane lane;
+			while(batch.size() < maxCount && (lane = nextLane(excludedMethods)) != null) {
+				Pending pending = nextPending(lane);
+				SegmentedLog.Record record = lane.log.hasUnread() ? lane.log.read() : null;
+				if(record != null && lane.done.contains(record.getNext())) { // handled before an older request of the lane
+					batch.ends.put(lane, record.getNext());
+					continue;
+				}
+				if(record != null && pending != null && pending.timestamp > 0 && pending.timestamp < getTimestamp(record.getData())) {
+					lane.log.rewind(record.getPosition()); // a released request in memory is older
+					record = null;
+				}
+				if(record == null) { // continue in memory
+					if(pending == null) continue;
+					if(batch.size() > 0 && batch.bytes + pending.record.length > maxBytes) break;
+					pending.taken = true;
+					batch.taken.add(pending);
+					addToBatch(batch, lane, pending.record, null, pending);
+					continue;
+				}
+				int length = record.getData().length;
+				if(batch.size() > 0 && batch.bytes + length > maxBytes) {
+					lane.log.rewind(record.getPosition()); // leave it for the next batch
+					break;
+				}
+				batch.ends.put(lane, record.getNext());
+				addToBatch(batch, lane, record.getData(), record.getNext(), null);
+			}
+		} catch (IOException e) {
+			logger.error("Error reading cache: " + e.getMessage());
+		}
+		return batch;
+	}
+
+	/**
+	 * Add a cached request to a batch, unless it cannot be read
+	 *
+	 * @param batch
+	 * @param lane
+	 * @param data
+	 * @param position position after the request in the log or null
+	 * @param pending request in memory or null
+	 */
+	private void addToBatch(Batch batch, Lane lane, byte[] data, SegmentedLog.Position position, Pending pending) {
+		int length = data.length;
+		try {
+			if(!JSONWriter.isRecord(data)) { // cached before requests were written by JSONWriter
+				data = JSONWriter.toRecord(JSONReader.parseRequest(data));
+			}
+			JSONReader.Header header = JSONReader.readHeader(data);
+			if(header.getMethod() == null) throw new ParseException("No method", 0);
+			batch.records.add(data);
+			batch.methods.add(header.getMethod());
+			batch.timestamps.add(header.getTimestamp());
+			batch.requestLanes.add(lane);
+			batch.positions.add(position);
+			batch.pendings.add(pending);
+			batch.bytes += length;
+		} catch (ParseException | JSONRPC2ParseException e) {
+			// skip it; it will be removed together with the batch
+			logger.error("Error parsing cached request: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return time of the sample in ms; 0 if unknown
+	 */
+	private static long getTimestamp(byte[] record) {
+		try {
+			return JSONReader.readHeader(record).getTimestamp();
+		} catch (ParseException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Weighted round-robin over the lanes with unread requests
+	 *
+	 * @return lane or null if nothing is left to read
+	 */
+	private Lane nextLane(Collection<String> excludedMethods) {
+		for(int i=0; i<=laneOrder.size(); i++) {
+			if(currentLane < laneOrder.size()) {
+				Lane lane = laneOrder.get(currentLane);
+				if(credit > 0 && hasUnread(lane) && !excludedMethods.contains(lane.name)) {
+					credit--;
+					return lane;
+				}
+			}
+			currentLane = (currentLane + 1) % Math.max(1, laneOrder.size());
+			credit = laneOrder.isEmpty() ? 0 : laneOrder.get(currentLane).weight;
+		}
+		return null;
+	}
+
+	private boolean hasUnread(Lane lane) {
+		return lane.log.hasUnread() || nextPending(lane) != null;
+	}
+
+	/**
+	 * @return oldest request in memory that is not part of the outstanding batch, or null
+	 */
+	private Pending nextPending(Lane lane) {
+		for(Pending pending : lane.memory) {
+			if(!pending.taken) return pending;
+		}
+		return null;
+	}
+
+	/**
+	 * Remove all requests of the batch from the cache
+	 *
+	 * @param batch
+	 */
+	public synchronized void ack(Batch batch) {
+		boolean[] handled = new boolean[batch.size()];
+		Arrays.fill(handled, true);
+		ack(batch, handled);
+	}
+
+	/**
+	 * Remove the first requests of the batch from the cache; the rest is read
+	 * again by the next call to {@link #popBatch(int, long)}.
+	 *
+	 * @param batch
+	 * @param count number of requests that were handled
+	 */
+	public synchronized void ack(Batch batch, int count) {
+		boolean[] handled = new boolean[batch.size()];
+		Arrays.fill(handled, 0, Math.min(count, handled.length), true);
+		ack(batch, handled);
+	}
+
+	/**
+	 * Remove the handled requests of the batch from the cache. The others stay
+	 * at the head of their lanes and are read again by the next call to
+	 * {@link #popBatch(int, long)}, before newer requests. Requests that could
+	 * not be read are removed, unless an unhandled request of their lane comes
+	 * before them.
+	 *
+	 * @param batch
+	 * @param handled per request of the batch: true if it can be removed
+	 */
+	public synchronized void ack(Batch batch, boolean[] handled) {
+		Map<Lane, SegmentedLog.Position> acked = new HashMap<Lane, SegmentedLog.Position>();
+		Set<Lane> kept = new HashSet<Lane>(); // lanes with an unhandled request in the log
+		Set<Pending> keptPendings = new HashSet<Pending>();
+		for(int i=0; i<batch.size(); i++) {
+			Lane lane = batch.requestLanes.get(i);
+			SegmentedLog.Position position = batch.positions.get(i);
+			if(position == null) {
+				if(!handled[i]) keptPendings.add(batch.pendings.get(i));
+			} else if(!handled[i]) {
+				kept.add(lane);
+			} else if(kept.contains(lane)) {
+				lane.done.add(position); // skipped when the lane is read again
+			} else {
+				acked.put(lane, position);
+			}
+		}
+		for(Map.Entry<Lane, SegmentedLog.Position> end : batch.ends.entrySet()) {
+			if(!kept.contains(end.getKey())) {
+				acked.put(end.getKey(), end.getValue());
+			}
+		}
+		for(Pending pending : batch.taken) {
+			if(keptPendings.contains(pending)) {
+				pending.taken = false;
+			} else {
+				removePending(pending);
+			}
+		}
+		try {
+			for(Map.Entry<Lane, SegmentedLog.Position> end : acked.entrySet()) {
+				Lane lane = end.getKey();
+				lane.log.ack(end.getValue());
+				for(Iterator<SegmentedLog.Position> it = lane.done.iterator(); it.hasNext(); ) {
+					if(it.next().compareTo(end.getValue()) <= 0) it.remove();
+				}
+			}
+			for(Lane lane : kept) {
+				lane.log.rewind();
+			}
+		} catch (IOException e) {
+			logger.error("Unable to acknowledge cached requests: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Give back all requests of the batch; they are read again by the next
+	 * call to {@link #popBatch(int, long)}.
+	 *
+	 * @param batch
+	 */
+	public synchronized void release(Batch batch) {
+		for(Pending pending : batch.taken) {
+			pending.taken = false;
+		}
+		for(Lane lane : batch.ends.keySet()) {
+			lane.log.rewind();
+		}
+	}
+
+	public synchronized void push(JSONRPC2Request request) {
+		writer.reset();
+		try {
+			writer.writeRequest(request);
+		} catch (IllegalArgumentException e) {
+			logger.error("Unable to cache " + request.getMethod() + "-data: " + e.getMessage());
+			return;
+		}
+		push(request.getMethod(), writer.toByteArray());
+	}
+
+	/**
+	 * Cache a request that was already serialized by {@link JSONWriter}
+	 *
+	 * @param method
+	 * @param record
+	 */
+	public synchronized void push(String method, byte[] record) {
+		if(closed) { // e.g. an agent that did not stop in time
+			appendAfterClose(method, record);
+			return;
+		}
+		Lane lane = getLane(method);
+		if(lane == null) {
+			logger.error("Unable to cache " + method + "-data: cache is not available");
+			return;
+		}
+		addPending(lane, record);
+	}
+
+	/**
+	 * Write a request straight to the log of its lane and commit it
+	 */
+	private void appendAfterClose(String method, byte[] record) {
+		Path directory = laneDirectory(laneName(method));
+		try (SegmentedLog log = new SegmentedLog(directory)) {
+			log.append(record);
+		} catch (IOException e) {
+			logger.error("Unable to cache " + method + "-data in " + directory + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Keep a request in memory; spill what exceeds the memory limits
+	 */
+	private void addPending(Lane lane, byte[] record) {
+		lane.memory.add(new Pending(record, System.currentTimeMillis(), getTimestamp(record)));
+		memoryCount++;
+		memoryBytes += record.length;
+		spill(false);
+		checkRetention();
+	}
+
+	private void removePending(Pending pending) {
+		for(Lane lane : laneOrder) {
+			if(lane.memory.remove(pending)) {
+				memoryCount--;
+				memoryBytes -= pending.record.length;
+				return;
+			}
+		}
+		// the cache was closed meanwhile; it stays in the log and will be sent again
+	}
+
+	public synchronized boolean isEmpty() {
+		for(Lane lane : laneOrder) {
+			if(hasUnread(lane)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Set the limits of the memory tier
+	 *
+	 * @param maxCount maximum number of requests in memory; 0 to write every request to the log directly
+	 * @param maxBytes maximum size of the requests in memory; 0 for no limit
+	 * @param maxAge requests older than this (in ms) are spilled to the log; 0 for no limit
+	 */
+	public synchronized void setMemoryLimits(int maxCount, long maxBytes, long maxAge) {
+		this.memoryMaxCount = maxCount;
+		this.memoryMaxBytes = maxBytes;
+		this.memoryMaxAge = maxAge;
+		spill(false);
+	}
+
+	/**
+	 * Spill requests that exceed the age limit of the memory tier; to be
+	 * called regularly, as pushes do this only for the requests in memory
+	 * at that time
+	 */
+	public synchronized void spill() {
+		spill(false);
+		checkRetention();
+	}
+
+	/**
+	 * Move requests from memory to the logs, oldest first: all of them or as
+	 * many as needed to meet the memory limits. Requests of the outstanding
+	 * batch stay in memory until the batch is acknowledged or released.
+	 *
+	 * @param all ignore the memory limits
+	 */
+	private void spill(boolean all) {
+		long threshold = System.currentTimeMillis() - memoryMaxAge;
+		while(true) {
+			Lane lane = null;
+			Pending oldest = null;
+			for(Lane candidate : laneOrder) {
+				for(Pending pending : candidate.memory) {
+					if(pending.taken) continue;
+					if(oldest == null || pending.time < oldest.time) {
+						lane = candidate;
+						oldest = pending;
+					}
+					break;
+				}
+			}
+			if(oldest == null) return;
+			if(!all && memoryCount <= memoryMaxCount
+					&& (memoryMaxBytes <= 0 || memoryBytes <= memoryMaxBytes)
+					&& (memoryMaxAge <= 0 || oldest.time >= threshold)) return;
+			lane.memory.remove(oldest);
+			memoryCount--;
+			memoryBytes -= oldest.record.length;
 			try {
-				Files.delete(cacheFile);
+				lane.log.append(oldest.record);
+			} catch (IOException e) {
+				logger.error("Unable to cache " + lane.name + "-data: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Set the retention limits and evict what exceeds them
+	 *
+	 * @param maxBytes maximum size of the cache in bytes; 0 for no limit
+	 * @param maxAge maximum age of cached requests in ms; 0 for no limit
+	 * @param minFreeSpace minimum usable space on the disk of the cache in bytes; 0 for no limit
+	 */
+	public synchronized void setRetention(long maxBytes, long maxAge, long minFreeSpace) {
+		this.maxBytes = maxBytes;
+		this.maxAge = maxAge;
+		this.minFreeSpace = minFreeSpace;
+		enforceRetention();
+	}
+
+	/**
+	 * Evict segments until all retention limits are met: segments older than
+	 * the maximum age from all lanes, then by priority until size and free
+	 * disk space are within their limits.
+	 */
+	public synchronized void enforceRetention() {
+		lastRetentionCheck = System.currentTimeMillis();
+		try {
+			if(maxAge > 0) {
+				long threshold = System.currentTimeMillis() - maxAge;
+				for(Lane lane : laneOrder) {
+					long oldest;
+					while((oldest = lane.log.getOldestTime()) > 0 && oldest < threshold && evict(lane, "age"));
+				}
+			}
+			while(maxBytes > 0 && getSize() > maxBytes && evict("size", Collections.<String>emptySet()));
+			if(minFreeSpace > 0) {
+				FileStore store = Files.getFileStore(cacheDirectory);
+				while(store.getUsableSpace() < minFreeSpace && getUnackedSize() > MIN_RETAINED_BYTES
+						&& evict("disk space", keptOnLowDiskSpace));
+			}
+		} catch (IOException e) {
+			logger.error("Unable to enforce cache retention: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Get a summary of the evictions since the last call, e.g. to report them
+	 *
+	 * @return text or null if nothing was evicted
+	 */
+	public synchronized String takeEvictionReport() {
+		if(reportedEvictions.isEmpty()) return null;
+		StringBuilder report = new StringBuilder("Cache retention evicted");
+		String separator = " ";
+		for(Map.Entry<String, Long> eviction : reportedEvictions.entrySet()) {
+			report.append(separator).append(eviction.getValue()).append(" bytes of ").append(eviction.getKey());
+			separator = ", ";
+		}
+		report.append("; total evictions: ").append(evictedSegments).append(" segments, ")
+				.append(evictedBytes).append(" bytes");
+		reportedEvictions.clear();
+		return report.toString();
+	}
+
+	/** Number of segments that were evicted */
+	public synchronized long getEvictedSegments() {
+		return evictedSegments;
+	}
+
+	/** Number of unacknowledged bytes that were evicted */
+	public synchronized long getEvictedBytes() {
+		return evictedBytes;
+	}
+
+	/**
+	 * @return size of all lanes in bytes
+	 */
+	private long getSize() {
+		long size = 0;
+		for(Lane lane : laneOrder) {
+			size += lane.log.getSize();
+		}
+		return size;
+	}
+
+	/**
+	 * @return size of the unacknowledged requests in all lanes in bytes
+	 */
+	private long getUnackedSize() {
+		long size = 0;
+		for(Lane lane : laneOrder) {
+			size += lane.log.getUnackedSize();
+		}
+		return size;
+	}
+
+	/**
+	 * Check the size limit after every push, the other limits from time to time
+	 */
+	private void checkRetention() {
+		if((maxBytes > 0 && getSize() > maxBytes)
+				|| System.currentTimeMillis() - lastRetentionCheck >= RETENTION_CHECK_INTERVAL) {
+			enforceRetention();
+		}
+	}
+
+	/**
+	 * Evict the oldest segment of the lane with the lowest weight; of lanes
+	 * with the same weight, the one with the oldest data. Only lanes with
+	 * unacknowledged requests are considered.
+	 *
+	 * @param reason
+	 * @param spared methods whose lanes are not evicted
+	 * @return false if there was nothing to evict
+	 */
+	private boolean evict(String reason, Collection<String> spared) throws IOException {
+		Lane lane = null;
+		long laneOldest = 0;
+		for(Lane candidate : laneOrder) {
+			if(spared.contains(candidate.name)) continue;
+			long oldest = candidate.log.getOldestTime();
+			if(oldest <= 0) continue;
+			if(lane == null || candidate.weight < lane.weight
+					|| (candidate.weight == lane.weight && oldest < laneOldest)) {
+				lane = candidate;
+				laneOldest = oldest;
+			}
+		}
+		return lane != null && evict(lane, reason);
+	}
+
+	private boolean evict(Lane lane, String reason) throws IOException {
+		long bytes = lane.log.evictOldest();
+		if(bytes <= 0) return false;
+		evictedSegments++;
+		evictedBytes += bytes;
+		String key = (lane.name.equals(DEFAULT_LANE) ? "default" : lane.name) + " (" + reason + ")";
+		Long reported = reportedEvictions.get(key);
+		reportedEvictions.put(key, reported == null ? bytes : reported + bytes);
+		return true;
+	}
+
+	/**
+	 * Force all cached requests to disk, except those of the outstanding
+	 * batch, which are removed or given back by the agent that sends them
+	 */
+	public synchronized void commit() {
+		spill(true);
+		for(Lane lane : laneOrder) {
+			try {
+				lane.log.commit();
 			} catch (IOException e) {
-				logger.error("Could not delete temporary file " + cacheFile + ": " + e.getMessage());
+				logger.error("Unable to commit cache lane " + lane.name + ": " + e.getMessage());
 			}
-			return request;			
 		}
 	}
 
-	public void push(JSONRPC2Request request) {
-		synchronized (stack) {
+	/**
+	 * Commit and close the cache; requests pushed afterwards go to disk directly
+	 */
+	public synchronized void close() {
+		for(Lane lane : laneOrder) {
+			for(Pending pending : lane.memory) {
+				pending.taken = false; // the outstanding batch can no longer be acknowledged
+			}
+		}
+		spill(true);
+		for(Lane lane : laneOrder) {
 			try {
-				File cacheFile = File.createTempFile(cacheFilePrefix, "", Paths.get(System.getProperty("user.dir")).toFile());
-				stack.push(cacheFile.toPath());
-				Files.write(cacheFile.toPath(), request.toJSONString().getBytes(),
-						StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.SYNC);
+				lane.log.close();
 			} catch (IOException e) {
-				logger.error("Unable to cache " + request.toString() + ": " + e.getMessage());
+				logger.error("Unable to close cache lane " + lane.name + ": " + e.getMessage());
+			}
+		}
+		lanes.clear();
+		laneOrder.clear();
+		closed = true;
+	}
+
+	/**
+	 * Get the lane of a method; it is created if needed
+	 *
+	 * @param method
+	 * @return lane, the default lane if it cannot be created, or null if the cache is not available
+	 */
+	private Lane getLane(String method) {
+		String name = laneName(method);
+		Lane lane = lanes.get(name);
+		if(lane == null && !closed) {
+			lane = openLane(name);
+		}
+		return lane != null ? lane : lanes.get(DEFAULT_LANE);
+	}
+
+	private static String laneName(String method) {
+		return method == null ? DEFAULT_LANE : method.replaceAll("[^A-Za-z0-9_-]", "_");
+	}
+
+	private Path laneDirectory(String name) {
+		return name.equals(DEFAULT_LANE) ? cacheDirectory : cacheDirectory.resolve(name);
+	}
+
+	private Lane openLane(String name) {
+		Path directory = laneDirectory(name);
+		try {
+			Lane lane = new Lane(name, new SegmentedLog(directory));
+			Integer weight = weights.get(name);
+			if(weight != null) {
+				lane.weight = weight;
 			}
+			lanes.put(name, lane);
+			laneOrder.add(lane);
+			return lane;
+		} catch (IOException e) {
+			logger.error("Unable to open cache in " + directory + ": " + e.getMessage());
+			return null;
 		}
 	}
-	
-	public boolean isEmpty() {
-		synchronized (stack) {
-			return stack.isEmpty();
+
+	/**
+	 * Move cache files of the former file-per-request cache into the log
+	 */
+	private void importLegacyCacheFiles() {
+		if(lanes.isEmpty()) return;
+		List<Path> cacheFiles = new ArrayList<Path>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(
+				Paths.get(System.getProperty("user.dir")), legacyCacheFilePrefix + '*')) {
+		    for(Path cacheFile : files) {
+		    	if(Files.isRegularFile(cacheFile)) {
+		    		cacheFiles.add(cacheFile);
+		    	}
+		    }
+		} catch(Exception e) {
+			logger.error("Unable to load cached files: " + e.getMessage());
+		}
+		if(cacheFiles.isEmpty()) return;
+		Collections.sort(cacheFiles, new Comparator<Path>() {
+			@Override
+			public int compare(Path p1, Path p2) {
+				try {
+					return Files.getLastModifiedTime(p1).compareTo(Files.getLastModifiedTime(p2));
+				} catch (IOException e) {
+					return 0;
+				}
+			}
+		});
+		logger.info("Importing " + cacheFiles.size() + " cache files");
+		List<Path> imported = new ArrayList<Path>();
+		for(Path cacheFile : cacheFiles) {
+			try {
+				byte[] data = Files.readAllBytes(cacheFile);
+				if(data.length > 0) {
+					String method = null;
+					try {
+						method = JSONReader.readHeader(data).getMethod();
+					} catch (ParseException e) {
+						// keep it in the default lane
+					}
+					Lane lane = getLane(method);
+					if(lane == null) throw new IOException("cache is not available");
+					lane.log.append(data);
+				}
+				imported.add(cacheFile);
+			} catch (IOException e) {
+				logger.error("Unable to import cache file " + cacheFile + ": " + e.getMessage());
+			}
+		}
+		try {
+			for(Lane lane : laneOrder) { // make sure data is on disk before deleting the old files
+				lane.log.commit();
+			}
+			for(Path cacheFile : imported) {
+				Files.delete(cacheFile);
+			}
+		} catch (IOException e) {
+			logger.error("Unable to finish import of cache files: " + e.getMessage());
 		}
 	}
 }
@@ -0,0 +1,360 @@
+/**
+ * Copyright (c) 2015 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package de.fenecon.fems.tools;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2ParseException;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
+
+/**
+ * Parses UTF-8 encoded JSON directly from a byte array, without decoding it
+ * into a String first. Objects become maps, arrays lists, integral numbers
+ * Long and other numbers Double.
+ *
+ * {@link #readHeader(byte[])} reads only method and timestamp of a request and
+ * skips everything else without creating objects.
+ *
+ * @author Stefan Feilmeier
+ */
+public class JSONReader {
+	private final byte[] data;
+	private final int end;
+	private int position;
+
+	/**
+	 * Method and timestamp of a serialized request
+	 */
+	public static class Header {
+		private final String method;
+		private final long timestamp;
+		private Header(String method, long timestamp) {
+			this.method = method;
+			this.timestamp = timestamp;
+		}
+		/** @return method or null */
+		public String getMethod() {
+			return method;
+		}
+		/** @return time of the sample in ms; 0 if unknown */
+		public long getTimestamp() {
+			return timestamp;
+		}
+	}
+
+	private JSONReader(byte[] data, int offset, int length) {
+		this.data = data;
+		this.position = offset;
+		this.end = offset + length;
+	}
+
+	/**
+	 * Parse one JSON value
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return Map, List, String, Long, Double, Boolean or null
+	 * @throws ParseException
+	 */
+	public static Object parse(byte[] data, int offset, int length) throws ParseException {
+		JSONReader reader = new JSONReader(data, offset, length);
+		Object value = reader.readValue();
+		reader.skipWhitespace();
+		if(reader.position < reader.end) throw reader.error("Unexpected data after value");
+		return value;
+	}
+
+	/**
+	 * Parse a JSON-RPC 2.0 request with named parameters
+	 *
+	 * @param data
+	 * @return
+	 * @throws JSONRPC2ParseException
+	 */
+	@SuppressWarnings("unchecked")
+	public static JSONRPC2Request parseRequest(byte[] data) throws JSONRPC2ParseException {
+		Object value;
+		try {
+			value = parse(data, 0, data.length);
+		} catch (ParseException e) {
+			throw new JSONRPC2ParseException("Invalid JSON: " + e.getMessage());
+		}
+		if(!(value instanceof Map<?, ?>) || !(((Map<?, ?>)value).get("method") instanceof String)) {
+			throw new JSONRPC2ParseException("Invalid JSON-RPC 2.0 request");
+		}
+		Map<String, Object> request = (Map<String, Object>)value;
+		Object params = request.get("params");
+		if(params != null && !(params instanceof Map<?, ?>)) {
+			throw new JSONRPC2ParseException("Only named parameters are supported");
+		}
+		return new JSONRPC2Request((String)request.get("method"), (Map<String, Object>)params, request.get("id"));
+	}
+
+	/**
+	 * Read method and "timestamp" parameter of a serialized request. Stops as
+	 * soon as both were found.
+	 *
+	 * @param data
+	 * @return
+	 * @throws ParseException if the data is not a JSON object
+	 */
+	public static Header readHeader(byte[] data) throws ParseException {
+		JSONReader reader = new JSONReader(data, 0, data.length);
+		String method = null;
+		long timestamp = 0;
+		boolean timestampFound = false;
+		reader.expect('{');
+		if(reader.consume('}')) return new Header(null, 0);
+		do {
+			String key = reader.readKey();
+			if(key.equals("method")) {
+				Object value = reader.readValue();
+				method = value instanceof String ? (String)value : null;
+			} else if(key.equals("params") && reader.peek() == '{') {
+				reader.expect('{');
+				if(!reader.consume('}')) {
+					do {
+						if(reader.readKey().equals("timestamp")) {
+							Object value = reader.readValue();
+							if(value instanceof Number) {
+								timestamp = ((Number)value).longValue() * 1000;
+							}
+							timestampFound = true;
+							if(method != null) return new Header(method, timestamp);
+						} else {
+							reader.skipValue();
+						}
+					} while(reader.consume(','));
+					reader.expect('}');
+				}
+			} else {
+				reader.skipValue();
+			}
+			if(method != null && timestampFound) break;
+		} while(reader.consume(','));
+		return new Header(method, timestamp);
+	}
+
+	private Object readValue() throws ParseException {
+		switch(peek()) {
+		case '{':
+			position++;
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			if(consume('}')) return map;
+			do {
+				String key = readKey();
+				map.put(key, readValue());
+			} while(consume(','));
+			expect('}');
+			return map;
+		case '[':
+			position++;
+			List<Object> list = new ArrayList<Object>();
+			if(consume(']')) return list;
+			do {
+				list.add(readValue());
+			} while(consume(','));
+			expect(']');
+			return list;
+		case '"':
+			return readString();
+		case 't':
+			readLiteral("true");
+			return Boolean.TRUE;
+		case 'f':
+			readLiteral("false");
+			return Boolean.FALSE;
+		case 'n':
+			readLiteral("null");
+			return null;
+		default:
+			return readNumber();
+		}
+	}
+
+	/**
+	 * Skip a value without creating objects
+	 */
+	private void skipValue() throws ParseException {
+		int depth = 0;
+		do {
+			switch(peek()) {
+			case '{':
+			case '[':
+				position++;
+				depth++;
+				break;
+			case '}':
+			case ']':
+				position++;
+				depth--;
+				break;
+			case ',':
+			case ':':
+				if(depth == 0) throw error("Unexpected character");
+				position++;
+				break;
+			case '"':
+				skipString();
+				break;
+			case 't':
+				readLiteral("true");
+				break;
+			case 'f':
+				readLiteral("false");
+				break;
+			case 'n':
+				readLiteral("null");
+				break;
+			default:
+				int start = position;
+				while(position < end && "+-.eE0123456789".indexOf(data[position]) >= 0) position++;
+				if(position == start) throw error("Unexpected character");
+			}
+		} while(depth > 0);
+	}
+
+	private String readKey() throws ParseException {
+		if(peek() != '"') throw error("Expected key");
+		String key = readString();
+		expect(':');
+		return key;
+	}
+
+	private String readString() throws ParseException {
+		position++; // opening quote
+		int start = position;
+		while(position < end && data[position] != '"' && data[position] != '\\') position++;
+		if(position >= end) throw error("Unterminated string");
+		if(data[position] == '"') { // no escapes: decode in one go
+			String s = new String(data, start, position - start, StandardCharsets.UTF_8);
+			position++;
+			return s;
+		}
+		StringBuilder builder = new StringBuilder(new String(data, start, position - start, StandardCharsets.UTF_8));
+		while(true) {
+			if(position >= end) throw error("Unterminated string");
+			byte b = data[position];
+			if(b == '"') {
+				position++;
+				return builder.toString();
+			}
+			if(b != '\\') {
+				int runStart = position;
+				while(position < end && data[position] != '"' && data[position] != '\\') position++;
+				builder.append(new String(data, runStart, position - runStart, StandardCharsets.UTF_8));
+				continue;
+			}
+			if(position + 1 >= end) throw error("Unterminated string");
+			byte escape = data[position + 1];
+			position += 2;
+			switch(escape) {
+			case '"': builder.append('"'); break;
+			case '\\': builder.append('\\'); break;
+			case '/': builder.append('/'); break;
+			case 'b': builder.append('\b'); break;
+			case 'f': builder.append('\f'); break;
+			case 'n': builder.append('\n'); break;
+			case 'r': builder.append('\r'); break;
+			case 't': builder.append('\t'); break;
+			case 'u':
+				if(position + 4 > end) throw error("Invalid unicode escape");
+				try {
+					builder.append((char)Integer.parseInt(new String(data, position, 4, StandardCharsets.US_ASCII), 16));
+				} catch (NumberFormatException e) {
+					throw error("Invalid unicode escape");
+				}
+				position += 4;
+				break;
+			default:
+				throw error("Invalid escape");
+			}
+		}
+	}
+
+	private void skipString() throws ParseException {
+		position++; // opening quote
+		while(position < end) {
+			byte b = data[position++];
+			if(b == '"') return;
+			if(b == '\\') position++;
+		}
+		throw error("Unterminated string");
+	}
+
+	private Object readNumber() throws ParseException {
+		int start = position;
+		boolean integral = true;
+		while(position < end) {
+			byte b = data[position];
+			if(b == '.' || b == 'e' || b == 'E') {
+				integral = false;
+			} else if(b != '-' && b != '+' && (b < '0' || b > '9')) {
+				break;
+			}
+			position++;
+		}
+		if(position == start) throw error("Unexpected character");
+		String number = new String(data, start, position - start, StandardCharsets.US_ASCII);
+		try {
+			if(integral && number.length() < 19) {
+				return Long.parseLong(number);
+			}
+			return Double.parseDouble(number);
+		} catch (NumberFormatException e) {
+			throw new ParseException("Invalid number " + number, start);
+		}
+	}
+
+	private void readLiteral(String literal) throws ParseException {
+		if(position + literal.length() > end) throw error("Unexpected end");
+		for(int i=0; i<literal.length(); i++) {
+			if(data[position + i] != literal.charAt(i)) throw error("Unexpected character");
+		}
+		position += literal.length();
+	}
+
+	/**
+	 * Skip whitespace and get the next character without consuming it
+	 */
+	private byte peek() throws ParseException {
+		skipWhitespace();
+		if(position >= end) throw error("Unexpected end");
+		return data[position];
+	}
+
+	private boolean consume(char c) throws ParseException {
+		if(peek() == c) {
+			position++;
+			return true;
+		}
+		return false;
+	}
+
+	private void expect(char c) throws ParseException {
+		if(!consume(c)) throw error("Expected '" + c + "'");
+	}
+
+	private void skipWhitespace() {
+		while(position < end && (data[position] == ' ' || data[position] == '\n'
+				|| data[position] == '\r' || data[position] == '\t')) {
+			position++;
+		}
+	}
+
+	private ParseException error(String message) {
+		return new ParseException(message + " at " + position, position);
+	}
+}
@@ -0,0 +1,361 @@
+/**
+ * Copyright (c) 2015 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package de.fenecon.fems.tools;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
+
+/**
+ * Serializes JSON directly as UTF-8 into a growing byte buffer, without
+ * building an intermediate String; integers are formatted straight into the
+ * buffer. The buffer is kept by reset(), so one writer can be reused for
+ * every request.
+ *
+ * Requests are written with the "id" member first and the "timestamp"
+ * parameter first in "params". Such a record can be copied into a batch with
+ * another id (see {@link #writeRecord(byte[], int)}) and its header can be
+ * read without parsing the states (see {@link JSONReader#readHeader(byte[])}).
+ *
+ * Not thread-safe.
+ *
+ * @author Stefan Feilmeier
+ */
+public class JSONWriter {
+	private final static byte[] ID_PREFIX = ascii("{\"id\":");
+	private final static byte[] HEX = ascii("0123456789abcdef");
+	private final static byte[] LONG_MIN_VALUE = ascii(Long.toString(Long.MIN_VALUE));
+	private final static String TIMESTAMP = "timestamp";
+
+	private byte[] buf = new byte[4096];
+	private int count = 0;
+
+	/**
+	 * Serialize a request into a new byte array
+	 *
+	 * @param request
+	 * @return UTF-8 encoded JSON
+	 */
+	public static byte[] toRecord(JSONRPC2Request request) {
+		JSONWriter writer = new JSONWriter();
+		writer.writeRequest(request);
+		return writer.toByteArray();
+	}
+
+	/**
+	 * Get the internal buffer; valid up to size() until the next write
+	 */
+	public byte[] getBuffer() {
+		return buf;
+	}
+
+	/**
+	 * @return number of bytes written since the last reset()
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Start over; the buffer is kept
+	 */
+	public void reset() {
+		count = 0;
+	}
+
+	/**
+	 * @return a copy of the bytes written since the last reset()
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buf, count);
+	}
+
+	public void write(int b) {
+		ensureCapacity(count + 1);
+		buf[count++] = (byte)b;
+	}
+
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(count + len);
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+
+	/**
+	 * Write a JSON-RPC 2.0 request with named parameters
+	 *
+	 * @param request
+	 * @throws IllegalArgumentException if a parameter has a type that cannot be written as JSON
+	 */
+	public void writeRequest(JSONRPC2Request request) {
+		write(ID_PREFIX, 0, ID_PREFIX.length);
+		writeValue(request.getID());
+		writeAscii(",\"jsonrpc\":\"2.0\",\"method\":");
+		writeString(request.getMethod());
+		Map<String, Object> params = request.getNamedParams();
+		if(params != null) {
+			writeAscii(",\"params\":");
+			writeObject(params, TIMESTAMP);
+		}
+		write('}');
+	}
+
+	/**
+	 * Start a request whose parameters are written by the caller: writeKey()
+	 * and a value for each, separated by write(','), and write('}') twice at
+	 * the end. To be a record, "timestamp" must be the first parameter.
+	 *
+	 * @param id
+	 * @param method
+	 */
+	public void writeRequestStart(Object id, String method) {
+		write(ID_PREFIX, 0, ID_PREFIX.length);
+		writeValue(id);
+		writeAscii(",\"jsonrpc\":\"2.0\",\"method\":");
+		writeString(method);
+		writeAscii(",\"params\":{");
+	}
+
+	/**
+	 * Write the key of an object member and the colon
+	 */
+	public void writeKey(String key) {
+		writeString(key);
+		write(':');
+	}
+
+	public void writeNumber(long value) {
+		if(value == Long.MIN_VALUE) { // cannot be negated
+			write(LONG_MIN_VALUE, 0, LONG_MIN_VALUE.length);
+			return;
+		}
+		int digits = 1;
+		for(long rest = Math.abs(value) / 10; rest > 0; rest /= 10) {
+			digits++;
+		}
+		ensureCapacity(count + digits + 1);
+		if(value < 0) {
+			buf[count++] = '-';
+			value = -value;
+		}
+		for(int i=count+digits-1; i>=count; i--) {
+			buf[i] = (byte)('0' + value % 10);
+			value /= 10;
+		}
+		count += digits;
+	}
+
+	/**
+	 * Write a number; NaN and infinity are written as null
+	 */
+	public void writeNumber(double value) {
+		writeAscii(Double.isNaN(value) || Double.isInfinite(value) ? "null" : Double.toString(value));
+	}
+
+	public void writeBoolean(boolean value) {
+		writeAscii(value ? "true" : "false");
+	}
+
+	/**
+	 * Copy a record that was written by {@link #writeRequest(JSONRPC2Request)}
+	 * and replace its id
+	 *
+	 * @param record
+	 * @param id new id
+	 * @return false if the record does not start with an id; nothing was written then
+	 */
+	public boolean writeRecord(byte[] record, int id) {
+		int start = skipId(record);
+		if(start < 0) return false;
+		write(ID_PREFIX, 0, ID_PREFIX.length);
+		writeNumber(id);
+		write(record, start, record.length - start);
+		return true;
+	}
+
+	/**
+	 * Check if a record was written by {@link #writeRequest(JSONRPC2Request)},
+	 * i.e. if it starts with the id
+	 *
+	 * @param record
+	 * @return
+	 */
+	public static boolean isRecord(byte[] record) {
+		return skipId(record) >= 0;
+	}
+
+	/**
+	 * Write a value: null, String, Character, Boolean, Number, Map, Iterable
+	 * or an array
+	 *
+	 * @param value
+	 * @throws IllegalArgumentException if the value has any other type
+	 */
+	public void writeValue(Object value) {
+		if(value == null) {
+			writeAscii("null");
+		} else if(value instanceof String || value instanceof Character) {
+			writeString(value.toString());
+		} else if(value instanceof Boolean) {
+			writeBoolean((Boolean)value);
+		} else if(value instanceof Double || value instanceof Float) {
+			double d = ((Number)value).doubleValue();
+			writeAscii(Double.isNaN(d) || Double.isInfinite(d) ? "null" : value.toString());
+		} else if(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			writeNumber(((Number)value).longValue());
+		} else if(value instanceof Number) {
+			writeAscii(value.toString());
+		} else if(value instanceof Map<?, ?>) {
+			writeObject((Map<?, ?>)value, null);
+		} else if(value instanceof Iterable<?>) {
+			write('[');
+			boolean first = true;
+			for(Object element : (Iterable<?>)value) {
+				if(!first) write(',');
+				writeValue(element);
+				first = false;
+			}
+			write(']');
+		} else if(value instanceof Object[]) {
+			write('[');
+			Object[] array = (Object[])value;
+			for(int i=0; i<array.length; i++) {
+				if(i > 0) write(',');
+				writeValue(array[i]);
+			}
+			write(']');
+		} else if(value.getClass().isArray()) { // array of primitives
+			write('[');
+			int length = Array.getLength(value);
+			for(int i=0; i<length; i++) {
+				if(i > 0) write(',');
+				writeValue(Array.get(value, i));
+			}
+			write(']');
+		} else {
+			throw new IllegalArgumentException("Unable to write " + value.getClass().getName() + " as JSON");
+		}
+	}
+
+	/**
+	 * Write an object; the member with the given key (if any) comes first
+	 */
+	private void writeObject(Map<?, ?> map, String firstKey) {
+		write('{');
+		boolean first = true;
+		if(firstKey != null && map.containsKey(firstKey)) {
+			writeString(firstKey);
+			write(':');
+			writeValue(map.get(firstKey));
+			first = false;
+		}
+		for(Map.Entry<?, ?> entry : map.entrySet()) {
+			String key = String.valueOf(entry.getKey());
+			if(firstKey != null && key.equals(firstKey)) continue;
+			if(!first) write(',');
+			writeString(key);
+			write(':');
+			writeValue(entry.getValue());
+			first = false;
+		}
+		write('}');
+	}
+
+	/**
+	 * Write a quoted and escaped string, encoded as UTF-8
+	 */
+	public void writeString(String s) {
+		int length = s.length();
+		ensureCapacity(count + 6 * length + 2); // no char takes more than "\u001f"
+		byte[] buf = this.buf;
+		int count = this.count;
+		buf[count++] = '"';
+		for(int i=0; i<length; i++) {
+			char c = s.charAt(i);
+			if(c == '"' || c == '\\') {
+				buf[count++] = '\\';
+				buf[count++] = (byte)c;
+			} else if(c < 0x20) {
+				buf[count++] = '\\';
+				switch(c) {
+				case '\n': buf[count++] = 'n'; break;
+				case '\r': buf[count++] = 'r'; break;
+				case '\t': buf[count++] = 't'; break;
+				default:
+					buf[count++] = 'u';
+					buf[count++] = '0';
+					buf[count++] = '0';
+					buf[count++] = HEX[c >> 4];
+					buf[count++] = HEX[c & 0xf];
+				}
+			} else if(c < 0x80) {
+				buf[count++] = (byte)c;
+			} else if(c < 0x800) {
+				buf[count++] = (byte)(0xc0 | (c >> 6));
+				buf[count++] = (byte)(0x80 | (c & 0x3f));
+			} else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, s.charAt(++i));
+				buf[count++] = (byte)(0xf0 | (codePoint >> 18));
+				buf[count++] = (byte)(0x80 | ((codePoint >> 12) & 0x3f));
+				buf[count++] = (byte)(0x80 | ((codePoint >> 6) & 0x3f));
+				buf[count++] = (byte)(0x80 | (codePoint & 0x3f));
+			} else if(Character.isSurrogate(c)) {
+				buf[count++] = '?'; // unpaired surrogate
+			} else {
+				buf[count++] = (byte)(0xe0 | (c >> 12));
+				buf[count++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+				buf[count++] = (byte)(0x80 | (c & 0x3f));
+			}
+		}
+		buf[count++] = '"';
+		this.count = count;
+	}
+
+	private void writeAscii(String s) {
+		int length = s.length();
+		ensureCapacity(count + length);
+		for(int i=0; i<length; i++) {
+			buf[count++] = (byte)s.charAt(i);
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		if(capacity > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(capacity, 2 * buf.length));
+		}
+	}
+
+	/**
+	 * Find the end of a leading id member
+	 *
+	 * @return offset after '{"id":<number>' or -1
+	 */
+	private static int skipId(byte[] record) {
+		if(record.length <= ID_PREFIX.length) return -1;
+		for(int i=0; i<ID_PREFIX.length; i++) {
+			if(record[i] != ID_PREFIX[i]) return -1;
+		}
+		int offset = ID_PREFIX.length;
+		if(offset < record.length && record[offset] == '-') offset++;
+		int digits = offset;
+		while(offset < record.length && record[offset] >= '0' && record[offset] <= '9') offset++;
+		if(offset == digits || offset >= record.length) return -1;
+		return record[offset] == ',' || record[offset] == '}' ? offset : -1;
+	}
+
+	private static byte[] ascii(String s) {
+		byte[] bytes = new byte[s.length()];
+		for(int i=0; i<bytes.length; i++) {
+			bytes[i] = (byte)s.charAt(i);
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,872 @@
+/**
+ * Copyright (c) 2015 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package de.fenecon.fems.tools;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only log of byte records, split into segment files of a fixed size.
+ *
+ * Every record is framed by a 4-byte length prefix and a CRC32 of length and
+ * data (segments of version 1 have no CRC and are still read). Appends are forced to disk
+ * in groups (at most once per commit interval) instead of once per record;
+ * one committer thread is shared by all logs.
+ * Readers acknowledge records by position; segments that were acknowledged
+ * completely are deleted as a whole.
+ *
+ * A small index file lists the segments with their sizes, the acknowledged
+ * position and how much of the last segment is known to be on disk. It is
+ * replaced atomically, so opening a log reads one file instead of listing the
+ * directory and opening every segment; only the unsynced tail of the last
+ * segment is checked. Without a valid index the directory is scanned.
+ *
+ * Corrupt data never blocks reading: a record with a wrong CRC is skipped, and
+ * if a length is broken the rest of the segment is skipped. Either way the
+ * data is kept in a quarantine file next to the segments. Only the quarantine
+ * files of the last MAX_QUARANTINE_FILES corrupt parts are kept.
+ *
+ * @author Stefan Feilmeier
+ */
+public class SegmentedLog implements Closeable {
+	private Logger logger = LoggerFactory.getLogger(SegmentedLog.class);
+
+	public final static int DEFAULT_SEGMENT_SIZE = 1024 * 1024; // 1 MiB
+	public final static long DEFAULT_COMMIT_INTERVAL = 1000; // ms
+
+	private final static int MAGIC = 0x46454d53; // "FEMS"
+	private final static int VERSION = 2;
+	private final static int VERSION_WITHOUT_CRC = 1;
+	private final static int HEADER_SIZE = 8;
+	private final static int LENGTH_SIZE = 4;
+	private final static int CRC_SIZE = 4;
+	private final static String QUARANTINE_PREFIX = "quarantine-";
+	private final static String QUARANTINE_SUFFIX = ".bad";
+	private final static int MAX_QUARANTINE_FILES = 10;
+	private final static String SEGMENT_PREFIX = "segment-";
+	private final static String SEGMENT_SUFFIX = ".log";
+	private final static String CHECKPOINT_FILE = "checkpoint"; // before there was an index
+	private final static String INDEX_FILE = "index";
+	private final static int INDEX_VERSION = 1;
+
+	private static ScheduledExecutorService committer = null;
+
+	/**
+	 * @return the thread that runs the scheduled commits of all logs
+	 */
+	private static synchronized ScheduledExecutorService getCommitter() {
+		if(committer == null) {
+			committer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "SegmentedLog committer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return committer;
+	}
+
+	/**
+	 * Position inside the log: segment id and byte offset in that segment
+	 */
+	public static class Position implements Comparable<Position> {
+		private final long segment;
+		private final long offset;
+		public Position(long segment, long offset) {
+			this.segment = segment;
+			this.offset = offset;
+		}
+		public long getSegment() {
+			return segment;
+		}
+		public long getOffset() {
+			return offset;
+		}
+		@Override
+		public int compareTo(Position other) {
+			if(segment != other.segment) {
+				return segment < other.segment ? -1 : 1;
+			}
+			return offset < other.offset ? -1 : (offset == other.offset ? 0 : 1);
+		}
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Position && compareTo((Position)obj) == 0;
+		}
+		@Override
+		public int hashCode() {
+			return (int)(segment * 31 + offset);
+		}
+		@Override
+		public String toString() {
+			return segment + ":" + offset;
+		}
+	}
+
+	/**
+	 * A record read from the log together with the position right after it
+	 */
+	public static class Record {
+		private final byte[] data;
+		private final Position position;
+		private final Position next;
+		private Record(byte[] data, Position position, Position next) {
+			this.data = data;
+			this.position = position;
+			this.next = next;
+		}
+		public byte[] getData() {
+			return data;
+		}
+		public Position getPosition() {
+			return position;
+		}
+		public Position getNext() {
+			return next;
+		}
+	}
+
+	private static class Segment {
+		private final long id;
+		private final Path path;
+		private long size;
+		private int version = 0; // unknown until the header was read
+		private FileChannel channel = null;
+		private Segment(long id, Path path, long size) {
+			this.id = id;
+			this.path = path;
+			this.size = size;
+		}
+	}
+
+	private final Path directory;
+	private final int segmentSize;
+	private final long commitInterval;
+	private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+	private final ByteBuffer recordHeader = ByteBuffer.allocate(LENGTH_SIZE + CRC_SIZE);
+	private final CRC32 crc = new CRC32();
+	private long quarantined = 0;
+	private long size = 0; // of all segments
+
+	private Segment active = null;
+	private Segment reading = null;
+	private Position readPosition;
+	private Position ackPosition;
+	private boolean dirty = false;
+	private long committedSize = 0; // size of the active segment at the last sync
+	private boolean checkpointDirty = false;
+	private long lastCommit = 0;
+	private ScheduledFuture<?> pendingCommit = null;
+
+	/**
+	 * Open (or create) a log in the given directory with default settings
+	 *
+	 * @param directory
+	 * @throws IOException
+	 */
+	public SegmentedLog(Path directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_COMMIT_INTERVAL);
+	}
+
+	/**
+	 * Open (or create) a log in the given directory
+	 *
+	 * @param directory directory holding the segment files
+	 * @param segmentSize maximum size of one segment file in bytes
+	 * @param commitInterval maximum time in ms between an append and its fsync; 0 to sync every append
+	 * @throws IOException
+	 */
+	public SegmentedLog(Path directory, int segmentSize, long commitInterval) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.commitInterval = commitInterval;
+		Files.createDirectories(directory);
+		long verified = loadIndex();
+		Position position;
+		if(verified >= 0) {
+			position = ackPosition;
+		} else { // no valid index: find the segments in the directory
+			loadSegments();
+			position = readCheckpoint();
+			verified = HEADER_SIZE;
+		}
+		openActive(verified);
+		setAckPosition(position);
+		for(Segment segment : segments.values()) {
+			size += segment.size;
+		}
+		writeIndex();
+		Files.deleteIfExists(directory.resolve(CHECKPOINT_FILE)); // replaced by the index
+	}
+
+	/**
+	 * Append a record to the end of the log. It will be synced to disk within
+	 * the commit interval.
+	 *
+	 * @param data
+	 * @throws IOException
+	 */
+	public void append(byte[] data) throws IOException {
+		append(data, 0, data.length);
+	}
+
+	/**
+	 * Append a part of a buffer as one record; the buffer is written as it is,
+	 * without copying it first.
+	 *
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	public synchronized void append(byte[] buffer, int offset, int length) throws IOException {
+		int needed = LENGTH_SIZE + CRC_SIZE + length;
+		if(active == null || active.version != VERSION // do not mix formats in one segment
+				|| (active.size > HEADER_SIZE && active.size + needed > segmentSize)) {
+			roll();
+		}
+		recordHeader.clear();
+		recordHeader.putInt(0, length);
+		recordHeader.putInt(LENGTH_SIZE, checksum(length, buffer, offset));
+		writeFully(active.channel, recordHeader, active.size);
+		writeFully(active.channel, ByteBuffer.wrap(buffer, offset, length), active.size + LENGTH_SIZE + CRC_SIZE);
+		active.size += needed;
+		size += needed;
+		dirty = true;
+		scheduleCommit();
+	}
+
+	/**
+	 * Read the next unread record and advance the read position. The record
+	 * stays in the log until it is acknowledged. Corrupt records are moved to
+	 * quarantine and skipped.
+	 *
+	 * @return the record or null if there is nothing left to read
+	 * @throws IOException
+	 */
+	public synchronized Record read() throws IOException {
+		while(true) {
+			Segment segment = segments.get(readPosition.getSegment());
+			if(segment == null) {
+				Long next = segments.higherKey(readPosition.getSegment());
+				if(next == null) return null;
+				readPosition = new Position(next, HEADER_SIZE);
+				continue;
+			}
+			long offset = readPosition.getOffset();
+			FileChannel channel = offset < segment.size ? readChannel(segment) : null;
+			int framing = getFraming(segment);
+			if(channel != null && offset + framing <= segment.size) {
+				recordHeader.clear();
+				recordHeader.limit(framing);
+				readFully(channel, recordHeader, offset);
+				int length = recordHeader.getInt(0);
+				if(length < 0 || offset + framing + length > segment.size) {
+					logger.error("Invalid record length in " + segment.path + " at " + offset + "; skipping the rest of the segment");
+					quarantine(segment, offset, segment.size);
+					readPosition = new Position(segment.id, segment.size);
+					continue;
+				}
+				byte[] data = new byte[length];
+				readFully(channel, ByteBuffer.wrap(data), offset + framing);
+				Position position = readPosition;
+				readPosition = new Position(segment.id, offset + framing + length);
+				if(segment.version != VERSION_WITHOUT_CRC && recordHeader.getInt(LENGTH_SIZE) != checksum(length, data, 0)) {
+					logger.error("Invalid checksum in " + segment.path + " at " + offset + "; skipping record");
+					quarantine(segment, offset, readPosition.getOffset());
+					continue;
+				}
+				return new Record(data, position, readPosition);
+			}
+			if(segment == active) return null;
+			Long next = segments.higherKey(segment.id);
+			if(next == null) return null;
+			readPosition = new Position(next, HEADER_SIZE);
+		}
+	}
+
+	/**
+	 * @return number of corrupt records (or rests of segments) that were moved to quarantine
+	 */
+	public synchronized long getQuarantinedCount() {
+		return quarantined;
+	}
+
+	/**
+	 * Acknowledge all records up to the given position. Segments that are fully
+	 * acknowledged are deleted.
+	 *
+	 * @param position
+	 * @throws IOException
+	 */
+	public synchronized void ack(Position position) throws IOException {
+		if(position.compareTo(ackPosition) <= 0) return;
+		ackPosition = position;
+		if(readPosition.compareTo(ackPosition) < 0) {
+			readPosition = ackPosition;
+		}
+		while(!segments.isEmpty()) {
+			Segment segment = segments.firstEntry().getValue();
+			if(segment == active) break;
+			if(segment.id > position.getSegment()) break;
+			if(segment.id == position.getSegment() && position.getOffset() < segment.size) break;
+			deleteSegment(segment);
+			logger.info("Deleted acknowledged segment " + segment.path.getFileName());
+		}
+		checkpointDirty = true;
+		scheduleCommit();
+	}
+
+	/**
+	 * Move the read position back to the last acknowledged record, so that all
+	 * unacknowledged records are read again.
+	 */
+	public synchronized void rewind() {
+		readPosition = ackPosition;
+	}
+
+	/**
+	 * Move the read position back to the given position (but not before the
+	 * last acknowledged record), e.g. to give back a record that was read too much.
+	 *
+	 * @param position
+	 */
+	public synchronized void rewind(Position position) {
+		readPosition = position.compareTo(ackPosition) < 0 ? ackPosition : position;
+	}
+
+	/**
+	 * @return true if there are records that were not read yet
+	 */
+	public synchronized boolean hasUnread() {
+		return active != null && readPosition.compareTo(new Position(active.id, active.size)) < 0;
+	}
+
+	/**
+	 * @return true if all records were acknowledged
+	 */
+	public synchronized boolean isEmpty() {
+		return active == null || ackPosition.compareTo(new Position(active.id, active.size)) >= 0;
+	}
+
+	/**
+	 * @return size of all segments in bytes, including acknowledged records that were not deleted yet
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return size of the records that were not acknowledged yet in bytes
+	 */
+	public synchronized long getUnackedSize() {
+		long unacked = 0;
+		for(Segment segment : segments.values()) {
+			if(segment.id == ackPosition.getSegment()) {
+				unacked += Math.max(0, segment.size - ackPosition.getOffset());
+			} else if(segment.id > ackPosition.getSegment()) {
+				unacked += segment.size - HEADER_SIZE;
+			}
+		}
+		return unacked;
+	}
+
+	/**
+	 * @return time in ms of the last write to the oldest segment with records
+	 * that were not acknowledged, i.e. all of them are at least that old; 0 if
+	 * all records were acknowledged
+	 * @throws IOException
+	 */
+	public synchronized long getOldestTime() throws IOException {
+		if(isEmpty()) return 0;
+		return Files.getLastModifiedTime(segments.firstEntry().getValue().path).toMillis();
+	}
+
+	/**
+	 * Delete the oldest segment although its records were not acknowledged,
+	 * e.g. to free disk space. If it is the active segment, a new one is started.
+	 *
+	 * @return number of unacknowledged bytes that were deleted; 0 if all records were acknowledged
+	 * @throws IOException
+	 */
+	public synchronized long evictOldest() throws IOException {
+		if(isEmpty()) return 0;
+		Segment oldest = segments.firstEntry().getValue();
+		long unacked = oldest.size - (oldest.id == ackPosition.getSegment() ? ackPosition.getOffset() : HEADER_SIZE);
+		if(oldest == active) {
+			roll();
+		}
+		deleteSegment(oldest);
+		writeIndex();
+		logger.warn("Evicted segment " + oldest.path + " with " + oldest.size + " bytes");
+		Position start = new Position(segments.firstKey(), HEADER_SIZE);
+		if(readPosition.compareTo(start) < 0) {
+			readPosition = start;
+		}
+		if(ackPosition.compareTo(start) < 0) {
+			ackPosition = start;
+			checkpointDirty = true;
+			scheduleCommit();
+		}
+		return unacked;
+	}
+
+	/**
+	 * Force all appended records and the acknowledged position to disk
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void commit() throws IOException {
+		if(pendingCommit != null) {
+			pendingCommit.cancel(false);
+			pendingCommit = null;
+		}
+		if(dirty && active != null) {
+			active.channel.force(false);
+			committedSize = active.size;
+		}
+		dirty = false;
+		if(checkpointDirty) {
+			writeIndex();
+			checkpointDirty = false;
+		}
+		lastCommit = System.currentTimeMillis();
+	}
+
+	/**
+	 * Commit and close all open files
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		commit();
+		writeIndex(); // with the final size, so that nothing has to be checked on the next start
+		closeReadChannel();
+		if(active != null && active.channel != null) {
+			active.channel.close();
+			active.channel = null;
+		}
+	}
+
+	/**
+	 * Sync now or make sure a sync is scheduled within the commit interval
+	 */
+	private void scheduleCommit() throws IOException {
+		long elapsed = System.currentTimeMillis() - lastCommit;
+		if(commitInterval <= 0 || elapsed >= commitInterval) {
+			commit();
+		} else if(pendingCommit == null) {
+			pendingCommit = getCommitter().schedule(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (SegmentedLog.this) {
+						pendingCommit = null;
+						try {
+							commit();
+						} catch (IOException e) {
+							logger.error("Unable to commit log in " + directory + ": " + e.getMessage());
+						}
+					}
+				}
+			}, commitInterval - elapsed, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Close the active segment and start a new one
+	 */
+	private void roll() throws IOException {
+		long id = 1;
+		if(active != null) {
+			active.channel.force(false);
+			dirty = false;
+			active.channel.close();
+			active.channel = null;
+			id = active.id + 1;
+		} else if(!segments.isEmpty()) {
+			id = segments.lastKey() + 1;
+		}
+		Path path = segmentPath(id);
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.flip();
+		writeFully(channel, header, 0);
+		channel.force(false);
+		active = new Segment(id, path, HEADER_SIZE);
+		active.version = VERSION;
+		active.channel = channel;
+		segments.put(id, active);
+		size += HEADER_SIZE;
+		committedSize = HEADER_SIZE;
+		writeIndex();
+	}
+
+	private Path segmentPath(long id) {
+		return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+	}
+
+	private FileChannel readChannel(Segment segment) throws IOException {
+		if(segment == active) {
+			return active.channel;
+		}
+		if(reading != segment) {
+			closeReadChannel();
+			segment.channel = FileChannel.open(segment.path, StandardOpenOption.READ);
+			reading = segment;
+			if(segment.version == 0) {
+				segment.version = readVersion(segment.channel);
+			}
+		}
+		return reading.channel;
+	}
+
+	private void closeReadChannel() throws IOException {
+		if(reading != null && reading != active && reading.channel != null) {
+			reading.channel.close();
+			reading.channel = null;
+		}
+		reading = null;
+	}
+
+	private void deleteSegment(Segment segment) throws IOException {
+		if(segment == reading) {
+			closeReadChannel();
+		}
+		segments.remove(segment.id);
+		size -= segment.size;
+		Files.deleteIfExists(segment.path);
+	}
+
+	/**
+	 * Find all segment files in the directory
+	 */
+	private void loadSegments() throws IOException {
+		logger.info("Scanning " + directory + " for segments");
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for(Path file : files) {
+				String name = file.getFileName().toString();
+				long id;
+				try {
+					id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+				} catch (NumberFormatException e) {
+					logger.warn("Ignoring unknown file " + file);
+					continue;
+				}
+				segments.put(id, new Segment(id, file, Files.size(file)));
+			}
+		}
+		for(Segment segment : segments.values().toArray(new Segment[segments.size()])) {
+			if(!hasValidHeader(segment)) {
+				logger.warn("Deleting segment with invalid header: " + segment.path);
+				segments.remove(segment.id);
+				Files.deleteIfExists(segment.path);
+			}
+		}
+	}
+
+	/**
+	 * Open the last segment for appending and recover it
+	 *
+	 * @param verified offset in the last segment up to which its records are known to be complete
+	 */
+	private void openActive(long verified) throws IOException {
+		while(!segments.isEmpty()) {
+			Segment last = segments.lastEntry().getValue();
+			if(hasValidHeader(last)) {
+				active = last;
+				active.channel = FileChannel.open(active.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				recover(active, Math.min(verified, active.size));
+				committedSize = active.size;
+				return;
+			}
+			logger.warn("Deleting segment with invalid header: " + last.path);
+			segments.remove(last.id);
+			Files.deleteIfExists(last.path);
+			verified = Long.MAX_VALUE; // the segment before was complete
+		}
+	}
+
+	private boolean hasValidHeader(Segment segment) throws IOException {
+		if(segment.size < HEADER_SIZE) return false;
+		try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+			segment.version = readVersion(channel);
+		}
+		return segment.version > 0;
+	}
+
+	/**
+	 * @return format version of a segment; -1 if the header is invalid
+	 */
+	private static int readVersion(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		try {
+			readFully(channel, header, 0);
+		} catch (EOFException e) {
+			return -1;
+		}
+		int version = header.getInt(4);
+		return header.getInt(0) == MAGIC && (version == VERSION || version == VERSION_WITHOUT_CRC) ? version : -1;
+	}
+
+	/**
+	 * @return size of length and checksum in front of each record
+	 */
+	private static int getFraming(Segment segment) {
+		return segment.version == VERSION_WITHOUT_CRC ? LENGTH_SIZE : LENGTH_SIZE + CRC_SIZE;
+	}
+
+	private int checksum(int length, byte[] data, int offset) {
+		crc.reset();
+		crc.update(length >>> 24);
+		crc.update(length >>> 16);
+		crc.update(length >>> 8);
+		crc.update(length);
+		crc.update(data, offset, length);
+		return (int)crc.getValue();
+	}
+
+	/**
+	 * Copy a part of a segment that cannot be read into a quarantine file
+	 *
+	 * @param segment
+	 * @param from
+	 * @param to
+	 */
+	private void quarantine(Segment segment, long from, long to) {
+		Path file = directory.resolve(QUARANTINE_PREFIX + segment.id + "-" + from + QUARANTINE_SUFFIX);
+		if(Files.exists(file)) return; // read again after a rewind
+		try {
+			ByteBuffer data = ByteBuffer.allocate((int)Math.min(to - from, segmentSize));
+			readFully(segment.channel, data, from);
+			data.flip();
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+				writeFully(channel, data, 0);
+			}
+			quarantined++;
+		} catch (IOException e) {
+			logger.error("Unable to quarantine " + segment.path + " at " + from + ": " + e.getMessage());
+		}
+		deleteOldQuarantineFiles();
+	}
+
+	/**
+	 * Keep only the newest MAX_QUARANTINE_FILES quarantine files, so that a
+	 * disk that keeps corrupting data does not fill up with them
+	 */
+	private void deleteOldQuarantineFiles() {
+		TreeMap<Position, Path> files = new TreeMap<Position, Path>(); // by the position of the corrupt data
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, QUARANTINE_PREFIX + "*" + QUARANTINE_SUFFIX)) {
+			for(Path file : stream) {
+				String name = file.getFileName().toString();
+				String[] parts = name.substring(QUARANTINE_PREFIX.length(), name.length() - QUARANTINE_SUFFIX.length()).split("-");
+				try {
+					files.put(new Position(Long.parseLong(parts[0]), Long.parseLong(parts[1])), file);
+				} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+					// not ours
+				}
+			}
+			while(files.size() > MAX_QUARANTINE_FILES) {
+				Path file = files.pollFirstEntry().getValue();
+				Files.deleteIfExists(file);
+				logger.warn("Deleted old quarantine file " + file.getFileName());
+			}
+		} catch (IOException e) {
+			logger.error("Unable to delete old quarantine files in " + directory + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Find the end of the last complete and intact record and cut off
+	 * everything after it (e.g. a record that was only partly written on power
+	 * loss). The part that is cut off is moved to quarantine.
+	 *
+	 * @param segment
+	 * @param offset start of a record up to which the segment is known to be complete
+	 */
+	private void recover(Segment segment, long offset) throws IOException {
+		offset = Math.max(HEADER_SIZE, offset);
+		int framing = getFraming(segment);
+		while(offset + framing <= segment.size) {
+			recordHeader.clear();
+			recordHeader.limit(framing);
+			readFully(segment.channel, recordHeader, offset);
+			int length = recordHeader.getInt(0);
+			if(length < 0 || offset + framing + length > segment.size) break;
+			if(segment.version != VERSION_WITHOUT_CRC) {
+				byte[] data = new byte[length];
+				readFully(segment.channel, ByteBuffer.wrap(data), offset + framing);
+				if(recordHeader.getInt(LENGTH_SIZE) != checksum(length, data, 0)) break;
+			}
+			offset += framing + length;
+		}
+		if(offset < segment.size) {
+			logger.warn("Truncating incomplete record in " + segment.path + " at " + offset);
+			quarantine(segment, offset, segment.size);
+			segment.channel.truncate(offset);
+			segment.channel.force(false);
+			segment.size = offset;
+		}
+	}
+
+	/**
+	 * Read the ack position of the former checkpoint file
+	 *
+	 * @return position or null
+	 */
+	private Position readCheckpoint() throws IOException {
+		Path file = directory.resolve(CHECKPOINT_FILE);
+		if(Files.exists(file)) {
+			ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+			if(buffer.remaining() == 16) {
+				return new Position(buffer.getLong(), buffer.getLong());
+			}
+			logger.warn("Ignoring invalid checkpoint " + file);
+		}
+		return null;
+	}
+
+	/**
+	 * Set ack and read position, but not before the first or after the last record
+	 *
+	 * @param position position or null for the beginning of the log
+	 */
+	private void setAckPosition(Position position) {
+		if(segments.isEmpty()) {
+			position = new Position(0, HEADER_SIZE);
+		} else {
+			Map.Entry<Long, Segment> first = segments.firstEntry();
+			if(position == null || position.getSegment() < first.getKey()) {
+				position = new Position(first.getKey(), HEADER_SIZE);
+			}
+			Position end = new Position(active.id, active.size);
+			if(position.compareTo(end) > 0) { // records were lost
+				position = end;
+			}
+		}
+		ackPosition = position;
+		readPosition = position;
+	}
+
+	/**
+	 * Read the index: segments with their sizes and the ack position. Segments
+	 * that are listed but were already deleted are skipped; segments that were
+	 * created after the index was written are added. The last listed segment
+	 * was active when the index was written, so its size is taken from disk;
+	 * if it was rolled since, it was synced completely before.
+	 *
+	 * @return offset up to which the last segment is known to be complete; -1 if there is no valid index
+	 */
+	private long loadIndex() throws IOException {
+		Path file = directory.resolve(INDEX_FILE);
+		if(!Files.exists(file)) return -1;
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+		int count = buffer.remaining() >= 28 ? buffer.getInt(24) : -1;
+		if(count < 0 || buffer.remaining() != 32 + count * 16 || buffer.getInt(0) != MAGIC
+				|| buffer.getInt(4) != INDEX_VERSION || buffer.getInt(buffer.limit() - 4) != crc(buffer, buffer.limit() - 4)) {
+			logger.warn("Ignoring invalid index " + file);
+			return -1;
+		}
+		ackPosition = new Position(buffer.getLong(8), buffer.getLong(16));
+		long verified = HEADER_SIZE;
+		long lastId = 0;
+		Segment lastListed = null;
+		buffer.position(28);
+		for(int i=0; i<count; i++) {
+			long id = buffer.getLong();
+			long size = buffer.getLong();
+			Path path = segmentPath(id);
+			lastListed = null;
+			if(Files.exists(path)) {
+				lastListed = new Segment(id, path, size);
+				segments.put(id, lastListed);
+				verified = size;
+			}
+			lastId = id;
+		}
+		if(lastListed != null) { // it may have grown since
+			lastListed.size = Files.size(lastListed.path);
+		}
+		Path path;
+		while(Files.exists(path = segmentPath(++lastId))) { // created after the index was written
+			segments.put(lastId, new Segment(lastId, path, Files.size(path)));
+			verified = HEADER_SIZE;
+		}
+		return verified;
+	}
+
+	/**
+	 * Atomically replace the index with the current segments and ack position.
+	 * For the active segment only the size at the last sync is recorded.
+	 */
+	private void writeIndex() throws IOException {
+		Path file = directory.resolve(INDEX_FILE);
+		Path tmp = directory.resolve(INDEX_FILE + ".tmp");
+		ByteBuffer buffer = ByteBuffer.allocate(32 + segments.size() * 16);
+		buffer.putInt(MAGIC);
+		buffer.putInt(INDEX_VERSION);
+		buffer.putLong(ackPosition.getSegment());
+		buffer.putLong(ackPosition.getOffset());
+		buffer.putInt(segments.size());
+		for(Segment segment : segments.values()) {
+			buffer.putLong(segment.id);
+			buffer.putLong(segment == active ? committedSize : segment.size);
+		}
+		buffer.putInt(crc(buffer, buffer.position()));
+		buffer.flip();
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeFully(channel, buffer, 0);
+			channel.force(false);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static int crc(ByteBuffer buffer, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 0, length);
+		return (int)crc.getValue();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if(read < 0) throw new EOFException("Unexpected end of segment at " + position);
+			position += read;
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) 2015 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package de.fenecon.fems.agents;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests of the overflow policies and lanes of {@link Mailbox}
+ *
+ * @author Stefan Feilmeier
+ */
+public class MailboxTest {
+	private final Mailbox mailbox = new Mailbox();
+
+	/** Message that knows its lane */
+	private static class LaneMessage extends Message {
+		private final int lane;
+		private LaneMessage(int lane) {
+			this.lane = lane;
+		}
+	}
+
+	private final static Mailbox.LaneSelector BY_LANE = new Mailbox.LaneSelector() {
+		@Override
+		public int getLane(Message message) {
+			return message instanceof LaneMessage ? ((LaneMessage)message).lane : -1;
+		}
+	};
+
+	@Test
+	public void keepsOrder() {
+		Message[] messages = offer(3);
+		for(Message message : messages) {
+			assertSame(message, mailbox.poll());
+		}
+		assertNull(mailbox.poll());
+	}
+
+	@Test
+	public void dropsNewest() {
+		mailbox.configure(2, Mailbox.OverflowPolicy.DROP_NEWEST);
+		Message[] messages = offer(2);
+		assertFalse(mailbox.offer(new Message()));
+		assertEquals(2, mailbox.size());
+		assertEquals(1, mailbox.getDroppedCount());
+		assertSame(messages[0], mailbox.poll());
+		assertSame(messages[1], mailbox.poll());
+	}
+
+	@Test
+	public void dropsOldest() {
+		mailbox.configure(2, Mailbox.OverflowPolicy.DROP_OLDEST);
+		Message[] messages = offer(3);
+		assertEquals(2, mailbox.size());
+		assertEquals(1, mailbox.getDroppedCount());
+		assertSame(messages[1], mailbox.poll());
+		assertSame(messages[2], mailbox.poll());
+	}
+
+	@Test
+	public void dropsOldestOfTheLaneWithTheLowestWeight() {
+		mailbox.configure(3, Mailbox.OverflowPolicy.DROP_OLDEST);
+		mailbox.configureLanes(new int[] { 4, 1 }, BY_LANE);
+		Message important = new LaneMessage(0);
+		Message unimportant = new LaneMessage(1);
+		mailbox.offer(important);
+		mailbox.offer(unimportant);
+		mailbox.offer(new LaneMessage(1));
+		mailbox.offer(new LaneMessage(0));
+		assertEquals(2, mailbox.size(0));
+		assertEquals(1, mailbox.size(1));
+		assertSame(important, mailbox.poll());
+	}
+
+	@Test
+	public void spillsToHandler() {
+		final List<Message> spilled = new ArrayList<Message>();
+		mailbox.configure(1, Mailbox.OverflowPolicy.SPILL);
+		mailbox.setSpillHandler(new Mailbox.SpillHandler() {
+			@Override
+			public void spill(Message message) {
+				spilled.add(message);
+			}
+		});
+		offer(1);
+		Message message = new Message();
+		assertFalse(mailbox.offer(message));
+		assertEquals(1, spilled.size());
+		assertSame(message, spilled.get(0));
+		assertEquals(1, mailbox.getSpilledCount());
+		assertEquals(0, mailbox.getDroppedCount());
+	}
+
+	@Test
+	public void dropsSpilledMessagesWithoutHandler() {
+		mailbox.configure(1, Mailbox.OverflowPolicy.SPILL);
+		offer(1);
+		assertFalse(mailbox.offer(new Message()));
+		assertEquals(1, mailbox.getDroppedCount());
+	}
+
+	@Test
+	public void blocksUntilThereIsSpace() throws InterruptedException {
+		mailbox.configure(1, Mailbox.OverflowPolicy.BLOCK);
+		Message[] messages = offer(1);
+		final Message blocked = new Message();
+		Thread sender = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				mailbox.offer(blocked);
+			}
+		});
+		sender.start();
+		sender.join(200);
+		assertTrue(sender.isAlive());
+		assertEquals(1, mailbox.size());
+		assertSame(messages[0], mailbox.poll());
+		sender.join(5000);
+		assertFalse(sender.isAlive());
+		assertSame(blocked, mailbox.poll());
+	}
+
+	@Test
+	public void tryOfferDoesNotApplyPolicy() {
+		mailbox.configure(1, Mailbox.OverflowPolicy.DROP_OLDEST);
+		Message[] messages = offer(1);
+		assertFalse(mailbox.tryOffer(new Message()));
+		assertEquals(0, mailbox.getDroppedCount());
+		assertSame(messages[0], mailbox.poll());
+		assertTrue(mailbox.tryOffer(new Message()));
+	}
+
+	@Test
+	public void drainsLanesInWeightedRoundRobin() {
+		mailbox.configureLanes(new int[] { 2, 1 }, BY_LANE);
+		for(int i=0; i<4; i++) {
+			mailbox.offer(new LaneMessage(0));
+			mailbox.offer(new LaneMessage(1));
+		}
+		List<Message> drained = new ArrayList<Message>();
+		assertEquals(8, mailbox.drainTo(drained, 100));
+		int[] expected = { 0, 0, 1, 0, 0, 1, 1, 1 };
+		for(int i=0; i<expected.length; i++) {
+			assertEquals(expected[i], ((LaneMessage)drained.get(i)).lane);
+		}
+	}
+
+	@Test
+	public void putsMessagesOfUnknownLanesIntoTheLastLane() {
+		mailbox.configureLanes(new int[] { 1, 1 }, BY_LANE);
+		mailbox.offer(new Message());
+		mailbox.offer(new LaneMessage(5));
+		assertEquals(2, mailbox.size(1));
+	}
+
+	@Test
+	public void keepsWaitingMessagesWhenLanesChange() {
+		Message[] messages = offer(3);
+		mailbox.configureLanes(new int[] { 1, 1 }, BY_LANE);
+		assertEquals(3, mailbox.size());
+		for(Message message : messages) {
+			assertSame(message, mailbox.poll());
+		}
+	}
+
+	@Test
+	public void drainsUpToMaxCount() {
+		offer(5);
+		List<Message> drained = new ArrayList<Message>();
+		assertEquals(3, mailbox.drainTo(drained, 3));
+		assertEquals(2, mailbox.size());
+		assertEquals(5, mailbox.getMaxDepth());
+	}
+
+	private Message[] offer(int count) {
+		Message[] messages = new Message[count];
+		for(int i=0; i<count; i++) {
+			messages[i] = new Message();
+			assertTrue(mailbox.offer(messages[i]));
+		}
+		return messages;
+	}
+}
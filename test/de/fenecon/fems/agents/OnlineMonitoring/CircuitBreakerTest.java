@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2015 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package de.fenecon.fems.agents.OnlineMonitoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the state changes of {@link CircuitBreaker}
+ *
+ * @author Stefan Feilmeier
+ */
+public class CircuitBreakerTest {
+	private final static long BASE_DELAY = 100; // ms
+	private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+	@Before
+	public void setUp() {
+		circuitBreaker.configure(BASE_DELAY, 60 * 1000, 3);
+	}
+
+	@Test
+	public void opensAfterThreshold() {
+		for(int i=0; i<2; i++) {
+			circuitBreaker.recordFailure();
+			assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+			assertTrue(circuitBreaker.allowRequest());
+		}
+		circuitBreaker.recordFailure();
+		assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+		assertFalse(circuitBreaker.allowRequest());
+		assertTrue(circuitBreaker.getRetryDelay() > 0);
+	}
+
+	@Test
+	public void successResetsFailures() {
+		circuitBreaker.recordFailure();
+		circuitBreaker.recordFailure();
+		circuitBreaker.recordSuccess();
+		assertEquals(0, circuitBreaker.getRetryDelay());
+		circuitBreaker.recordFailure();
+		circuitBreaker.recordFailure();
+		assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+	}
+
+	@Test
+	public void allowsSingleTrialWhenHalfOpen() throws InterruptedException {
+		open();
+		waitForRetry();
+		assertTrue(circuitBreaker.allowRequest());
+		assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+		assertFalse(circuitBreaker.allowRequest());
+		circuitBreaker.releaseRequest(); // the trial was not sent after all
+		assertTrue(circuitBreaker.allowRequest());
+		assertFalse(circuitBreaker.allowRequest());
+	}
+
+	@Test
+	public void closesAfterSuccessfulTrial() throws InterruptedException {
+		open();
+		waitForRetry();
+		assertTrue(circuitBreaker.allowRequest());
+		circuitBreaker.recordSuccess();
+		assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+		assertTrue(circuitBreaker.allowRequest());
+		assertTrue(circuitBreaker.allowRequest());
+	}
+
+	@Test
+	public void reopensAfterFailedTrial() throws InterruptedException {
+		open();
+		waitForRetry();
+		assertTrue(circuitBreaker.allowRequest());
+		circuitBreaker.recordFailure();
+		assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+		assertFalse(circuitBreaker.allowRequest());
+	}
+
+	@Test
+	public void growsRetryDelayWithEveryFailure() {
+		circuitBreaker.configure(1000, 60 * 1000, 1);
+		for(int i=0; i<6; i++) {
+			circuitBreaker.recordFailure();
+			long backoff = 1000L << i;
+			long delay = circuitBreaker.getRetryDelay();
+			// between half and the full backoff, because of the jitter
+			assertTrue("failure " + (i + 1) + ": " + delay, delay >= backoff / 2 - 50 && delay <= backoff);
+		}
+		for(int i=0; i<10; i++) {
+			circuitBreaker.recordFailure();
+		}
+		assertTrue(circuitBreaker.getRetryDelay() <= 60 * 1000);
+	}
+
+	private void open() {
+		for(int i=0; i<3; i++) {
+			circuitBreaker.recordFailure();
+		}
+		assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+	}
+
+	private void waitForRetry() throws InterruptedException {
+		long delay = circuitBreaker.getRetryDelay();
+		assertTrue(delay <= 4 * BASE_DELAY);
+		Thread.sleep(delay + 10);
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2015 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package de.fenecon.fems.agents.OnlineMonitoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
+
+/**
+ * Tests of the downsampling of old requests by {@link Rollup}
+ *
+ * @author Stefan Feilmeier
+ */
+public class RollupTest {
+	private final static long INTERVAL = 60; // s
+	private final Rollup rollup = new Rollup(3600 * 1000, INTERVAL * 1000);
+	private final long now = System.currentTimeMillis() / 1000;
+	private final long old = (now / INTERVAL - 100) * INTERVAL; // start of an interval, two hours ago
+
+	@Test
+	public void combinesOldRequestsPerMethodAndInterval() {
+		List<JSONRPC2Request> requests = Arrays.asList(
+				request("pro", old, 10, "on"),
+				request("io", old + 5, 1, "x"),
+				request("pro", old + 10, 30, "off"),
+				request("pro", old + INTERVAL, 50, "on"),
+				request("pro", old + 20, 20, null));
+		List<List<Integer>> parts = new ArrayList<List<Integer>>();
+		List<JSONRPC2Request> combined = rollup.apply(requests, parts);
+		assertEquals(3, combined.size());
+		assertEquals(Arrays.asList(Arrays.asList(0, 2, 4), Arrays.asList(1), Arrays.asList(3)), parts);
+
+		Map<String, Object> params = combined.get(0).getNamedParams();
+		assertEquals("pro", combined.get(0).getMethod());
+		assertEquals(old + 20, params.get("timestamp")); // of the latest part
+		Map<?, ?> states = (Map<?, ?>)params.get("states");
+		assertEquals(20, states.get("p"));
+		assertEquals("off", states.get("mode")); // latest part that has it
+		Map<?, ?> stats = (Map<?, ?>)params.get(Rollup.ROLLUP);
+		assertEquals(3, stats.get("count"));
+		assertEquals(old, stats.get("from"));
+		assertEquals(INTERVAL, stats.get("interval"));
+		assertEquals(10.0, ((Map<?, ?>)stats.get("min")).get("p"));
+		assertEquals(30.0, ((Map<?, ?>)stats.get("max")).get("p"));
+		assertEquals(20.0, ((Map<?, ?>)stats.get("avg")).get("p"));
+		assertFalse(((Map<?, ?>)stats.get("min")).containsKey("mode"));
+
+		// single requests of an interval are passed on unchanged
+		assertSame(requests.get(1), combined.get(1));
+		assertSame(requests.get(3), combined.get(2));
+	}
+
+	@Test
+	public void passesRecentRequestsOnUnchanged() {
+		List<JSONRPC2Request> requests = Arrays.asList(
+				request("pro", now - 20, 1, null),
+				request("pro", now - 10, 2, null));
+		List<JSONRPC2Request> combined = rollup.apply(requests);
+		assertEquals(2, combined.size());
+		assertSame(requests.get(0), combined.get(0));
+		assertSame(requests.get(1), combined.get(1));
+	}
+
+	@Test
+	public void keepsOrderAndSkipsNullEntries() {
+		List<JSONRPC2Request> requests = Arrays.asList(
+				request("pro", now - 10, 1, null),
+				null,
+				request("pro", old, 2, null),
+				request("pro", old + 1, 3, null));
+		List<List<Integer>> parts = new ArrayList<List<Integer>>();
+		List<JSONRPC2Request> combined = rollup.apply(requests, parts);
+		assertEquals(2, combined.size());
+		assertSame(requests.get(0), combined.get(0));
+		assertEquals(Arrays.asList(Arrays.asList(0), Arrays.asList(2, 3)), parts);
+	}
+
+	@Test
+	public void doesNotCombineRequestsAgain() {
+		List<JSONRPC2Request> requests = Arrays.asList(
+				request("pro", old, 1, null),
+				request("pro", old + 1, 2, null));
+		List<JSONRPC2Request> combined = rollup.apply(requests);
+		assertEquals(1, combined.size());
+		List<JSONRPC2Request> twice = rollup.apply(Arrays.asList(combined.get(0), request("pro", old + 2, 3, null)));
+		assertEquals(2, twice.size());
+		assertSame(combined.get(0), twice.get(0));
+	}
+
+	private static JSONRPC2Request request(String method, long timestamp, int p, String mode) {
+		Map<String, Object> states = new HashMap<String, Object>();
+		states.put("p", p);
+		if(mode != null) {
+			states.put("mode", mode);
+		}
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("timestamp", timestamp);
+		params.put("states", states);
+		return new JSONRPC2Request(method, params, 0);
+	}
+}
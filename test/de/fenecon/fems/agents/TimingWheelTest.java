@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2015 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package de.fenecon.fems.agents;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests of the expiry and cancelling of {@link TimingWheel} timers
+ *
+ * @author Stefan Feilmeier
+ */
+public class TimingWheelTest {
+	private final TimingWheel timingWheel = TimingWheel.getTimingWheel();
+	private final Agent agent = new Agent() {}; // not started: messages stay in the mailbox
+
+	@Test
+	public void deliversMessageAfterDelay() throws InterruptedException {
+		Message message = new Message();
+		long start = System.nanoTime();
+		TimingWheel.Timeout timeout = timingWheel.schedule(agent, message, 100);
+		assertTrue(awaitDone(timeout, 5000));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100 - TimingWheel.DEFAULT_TICK));
+		assertSame(message, agent.getMailbox().poll());
+	}
+
+	@Test
+	public void deliversMessageAfterMoreThanOneRound() throws InterruptedException {
+		long delay = TimingWheel.DEFAULT_TICK * TimingWheel.DEFAULT_WHEEL_SIZE + 200;
+		Message message = new Message();
+		long start = System.nanoTime();
+		TimingWheel.Timeout timeout = timingWheel.schedule(agent, message, delay);
+		assertTrue(awaitDone(timeout, delay + 5000));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(delay - TimingWheel.DEFAULT_TICK));
+		assertSame(message, agent.getMailbox().poll());
+	}
+
+	@Test
+	public void doesNotDeliverCancelledMessage() throws InterruptedException {
+		TimingWheel.Timeout timeout = timingWheel.schedule(agent, new Message(), 100);
+		timeout.cancel();
+		assertTrue(timeout.isCancelled());
+		assertTrue(timeout.isDone());
+		Thread.sleep(300);
+		assertNull(agent.getMailbox().poll());
+	}
+
+	@Test
+	public void retriesMessageToFullMailbox() throws InterruptedException {
+		agent.setMailbox(1, Mailbox.OverflowPolicy.DROP_NEWEST);
+		Message waiting = new Message();
+		agent.getMailbox().offer(waiting);
+		Message message = new Message();
+		TimingWheel.Timeout timeout = timingWheel.schedule(agent, message, 10);
+		Thread.sleep(100);
+		assertFalse(timeout.isDone());
+		assertSame(waiting, agent.getMailbox().poll());
+		assertTrue(awaitDone(timeout, 5000));
+		assertSame(message, agent.getMailbox().poll());
+		assertEquals(0, agent.getMailbox().getDroppedCount());
+	}
+
+	@Test
+	public void runsPeriodicTaskUntilCancelled() throws InterruptedException {
+		final AtomicInteger runs = new AtomicInteger();
+		final CountDownLatch latch = new CountDownLatch(3);
+		TimingWheel.Timeout timeout = timingWheel.schedulePeriodic(new Runnable() {
+			@Override
+			public void run() {
+				runs.incrementAndGet();
+				latch.countDown();
+			}
+		}, 0, 20);
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		timeout.cancel();
+		assertTrue(timeout.isDone());
+		Thread.sleep(50); // a run that already started may still finish
+		int count = runs.get();
+		Thread.sleep(200);
+		assertEquals(count, runs.get());
+	}
+
+	@Test
+	public void deliversSameMessagePeriodically() throws InterruptedException {
+		Message message = new Message();
+		TimingWheel.Timeout timeout = timingWheel.schedulePeriodic(agent, message, 0, 20);
+		long deadline = System.currentTimeMillis() + 5000;
+		while(agent.getMailbox().size() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		timeout.cancel();
+		assertSame(message, agent.getMailbox().poll());
+		assertSame(message, agent.getMailbox().poll());
+		assertTrue(timeout.isDone());
+	}
+
+	private static boolean awaitDone(TimingWheel.Timeout timeout, long millis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + millis;
+		while(!timeout.isDone()) {
+			if(System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(5);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2015 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package de.fenecon.fems.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
+
+/**
+ * Tests of the partial acknowledgement of batches of {@link JSONRPC2RequestCache}
+ *
+ * @author Stefan Feilmeier
+ */
+public class JSONRPC2RequestCacheTest {
+	private String userDir;
+	private Path directory;
+	private JSONRPC2RequestCache cache;
+
+	@Before
+	public void setUp() throws IOException {
+		userDir = System.getProperty("user.dir");
+		directory = Files.createTempDirectory("requestcache");
+		System.setProperty("user.dir", directory.toString());
+		cache = new JSONRPC2RequestCache();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		cache.close();
+		System.setProperty("user.dir", userDir);
+		Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	@Test
+	public void keepsUnhandledRequestsOfTheLog() {
+		push(1, 2, 3, 4);
+		cache.commit(); // moves them from memory to the log
+		keepsUnhandledRequests();
+	}
+
+	@Test
+	public void keepsUnhandledRequestsInMemory() {
+		push(1, 2, 3, 4);
+		keepsUnhandledRequests();
+	}
+
+	private void keepsUnhandledRequests() {
+		JSONRPC2RequestCache.Batch batch = cache.popBatch(100, Long.MAX_VALUE);
+		assertEquals(Arrays.asList(1L, 2L, 3L, 4L), timestamps(batch));
+		cache.ack(batch, new boolean[] { true, false, true, false });
+		push(5);
+		batch = cache.popBatch(100, Long.MAX_VALUE);
+		assertEquals(Arrays.asList(2L, 4L, 5L), timestamps(batch));
+		cache.ack(batch);
+		assertTrue(cache.isEmpty());
+	}
+
+	@Test
+	public void keepsRequestsAfterTheAcknowledgedCount() {
+		push(1, 2, 3);
+		cache.commit();
+		push(4);
+		JSONRPC2RequestCache.Batch batch = cache.popBatch(100, Long.MAX_VALUE);
+		cache.ack(batch, 2);
+		batch = cache.popBatch(100, Long.MAX_VALUE);
+		assertEquals(Arrays.asList(3L, 4L), timestamps(batch));
+	}
+
+	@Test
+	public void releaseGivesBackTheWholeBatch() {
+		push(1, 2);
+		cache.commit();
+		push(3);
+		JSONRPC2RequestCache.Batch batch = cache.popBatch(100, Long.MAX_VALUE);
+		assertTrue(cache.isEmpty());
+		cache.release(batch);
+		batch = cache.popBatch(100, Long.MAX_VALUE);
+		assertEquals(Arrays.asList(1L, 2L, 3L), timestamps(batch));
+	}
+
+	@Test
+	public void keepsUnhandledRequestsAfterReopen() {
+		push(1, 2, 3, 4);
+		cache.commit();
+		JSONRPC2RequestCache.Batch batch = cache.popBatch(100, Long.MAX_VALUE);
+		cache.ack(batch, new boolean[] { true, false, true, true });
+		cache.close();
+		cache = new JSONRPC2RequestCache();
+		batch = cache.popBatch(100, Long.MAX_VALUE);
+		// handled requests after an unhandled one may be sent again, but none is lost
+		List<Long> timestamps = timestamps(batch);
+		assertEquals(Long.valueOf(2), timestamps.get(0));
+		assertTrue(!timestamps.contains(1L) && timestamps.contains(4L));
+	}
+
+	@Test
+	public void keepsRecordsPushedAfterClose() {
+		cache.close();
+		push(1, 2);
+		cache = new JSONRPC2RequestCache();
+		assertEquals(Arrays.asList(1L, 2L), timestamps(cache.popBatch(100, Long.MAX_VALUE)));
+	}
+
+	private void push(long... timestamps) {
+		for(long timestamp : timestamps) {
+			Map<String, Object> states = new HashMap<String, Object>();
+			states.put("soc", 50);
+			Map<String, Object> params = new HashMap<String, Object>();
+			params.put("timestamp", timestamp);
+			params.put("states", states);
+			cache.push(new JSONRPC2Request("pro", params, 0));
+		}
+	}
+
+	/**
+	 * @return timestamps of the requests of a batch in s
+	 */
+	private static List<Long> timestamps(JSONRPC2RequestCache.Batch batch) {
+		List<Long> timestamps = new ArrayList<Long>();
+		for(int i=0; i<batch.size(); i++) {
+			timestamps.add(batch.getTimestamp(i) / 1000);
+		}
+		return timestamps;
+	}
+}
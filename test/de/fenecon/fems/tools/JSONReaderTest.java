@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2015 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package de.fenecon.fems.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2ParseException;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
+
+/**
+ * Tests of {@link JSONReader}
+ *
+ * @author Stefan Feilmeier
+ */
+public class JSONReaderTest {
+
+	@Test
+	public void readsHeaderOfRecord() throws ParseException {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("timestamp", 1234L);
+		params.put("states", new HashMap<String, Object>());
+		JSONReader.Header header = JSONReader.readHeader(JSONWriter.toRecord(new JSONRPC2Request("pro", params, 0)));
+		assertEquals("pro", header.getMethod());
+		assertEquals(1234000, header.getTimestamp());
+	}
+
+	@Test
+	public void skipsNestedValuesBeforeHeader() throws ParseException {
+		JSONReader.Header header = JSONReader.readHeader(bytes("{ \"id\" : 1, \"params\" : { \"states\" : "
+				+ "{\"a\":[1,{\"b\":\"}]\\\"\"}],\"c\":-1.5e3,\"d\":true,\"e\":null}, \"timestamp\" : 7 }, \"method\" : \"io\" }"));
+		assertEquals("io", header.getMethod());
+		assertEquals(7000, header.getTimestamp());
+	}
+
+	@Test
+	public void readsHeaderWithoutTimestamp() throws ParseException {
+		JSONReader.Header header = JSONReader.readHeader(bytes("{\"method\":\"system\",\"params\":{\"log\":\"x\"}}"));
+		assertEquals("system", header.getMethod());
+		assertEquals(0, header.getTimestamp());
+		header = JSONReader.readHeader(bytes("{}"));
+		assertNull(header.getMethod());
+	}
+
+	@Test(expected = ParseException.class)
+	public void rejectsHeaderOfNonObject() throws ParseException {
+		JSONReader.readHeader(bytes("[1,2]"));
+	}
+
+	@Test(expected = ParseException.class)
+	public void rejectsUnterminatedSkippedString() throws ParseException {
+		JSONReader.readHeader(bytes("{\"id\":\"abc"));
+	}
+
+	@Test
+	public void parsesValues() throws ParseException {
+		Object value = parse("{\"a\":[1,-2.5,1e2,true,false,null],\"b\":\"x\\u00e4\\n\\\"\",\"c\":{}}");
+		Map<?, ?> map = (Map<?, ?>)value;
+		assertEquals(Arrays.asList(1L, -2.5, 100.0, true, false, null), map.get("a"));
+		assertEquals("x\u00e4\n\"", map.get("b"));
+		assertEquals(new HashMap<String, Object>(), map.get("c"));
+	}
+
+	@Test
+	public void parsesUtf8() throws ParseException {
+		assertEquals("\u00e4\u20ac\ud83d\ude00", parse("\"\u00e4\u20ac\ud83d\ude00\""));
+	}
+
+	@Test
+	public void parsesLargeIntegersAsDouble() throws ParseException {
+		assertEquals(Long.valueOf(123456789012345678L), parse("123456789012345678"));
+		assertEquals(Double.valueOf(1.2345678901234567e19), parse("12345678901234567890"));
+	}
+
+	@Test(expected = ParseException.class)
+	public void rejectsDataAfterValue() throws ParseException {
+		parse("{} {}");
+	}
+
+	@Test
+	public void parsesWrittenRequest() throws JSONRPC2ParseException {
+		Map<String, Object> states = new HashMap<String, Object>();
+		states.put("soc", 55L);
+		states.put("p", 1.5);
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("timestamp", 1234L);
+		params.put("states", states);
+		JSONRPC2Request request = JSONReader.parseRequest(JSONWriter.toRecord(new JSONRPC2Request("pro", params, 3)));
+		assertEquals("pro", request.getMethod());
+		assertEquals(3L, request.getID());
+		assertEquals(params, request.getNamedParams());
+	}
+
+	@Test(expected = JSONRPC2ParseException.class)
+	public void rejectsPositionalParams() throws JSONRPC2ParseException {
+		JSONReader.parseRequest(bytes("{\"method\":\"pro\",\"params\":[1]}"));
+	}
+
+	private static Object parse(String json) throws ParseException {
+		byte[] data = bytes(json);
+		return JSONReader.parse(data, 0, data.length);
+	}
+
+	private static byte[] bytes(String json) {
+		return json.getBytes(StandardCharsets.UTF_8);
+	}
+}
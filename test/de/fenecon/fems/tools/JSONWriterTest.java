@@ -0,0 +1,135 @@
+/**
+ * Copyright (c) 2015 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package de.fenecon.fems.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
+
+/**
+ * Tests of {@link JSONWriter}
+ *
+ * @author Stefan Feilmeier
+ */
+public class JSONWriterTest {
+	private final JSONWriter writer = new JSONWriter();
+
+	@Test
+	public void escapesQuotesBackslashesAndControlCharacters() {
+		writer.writeString("a\"b\\c\n\r\t\u0001\u001f");
+		assertEquals("\"a\\\"b\\\\c\\n\\r\\t\\u0001\\u001f\"", written());
+	}
+
+	@Test
+	public void encodesUtf8() {
+		String s = "\u00e4\u20ac\ud83d\ude00";
+		writer.writeString(s);
+		assertEquals("\"" + s + "\"", written());
+	}
+
+	@Test
+	public void replacesUnpairedSurrogates() {
+		writer.writeString("a\ud83db");
+		assertEquals("\"a?b\"", written());
+	}
+
+	@Test
+	public void growsBuffer() {
+		char[] chars = new char[10000];
+		Arrays.fill(chars, '\u00e4');
+		writer.writeString(new String(chars));
+		assertEquals(2 * chars.length + 2, writer.size());
+		assertEquals("\"" + new String(chars) + "\"", written());
+	}
+
+	@Test
+	public void writesNumbers() {
+		long[] values = { 0, 7, -7, 10, -10, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE };
+		for(long value : values) {
+			writer.reset();
+			writer.writeNumber(value);
+			assertEquals(Long.toString(value), written());
+		}
+		writer.reset();
+		writer.writeValue(Arrays.asList(1, 2L, (short)3, 1.5, Double.NaN, Float.POSITIVE_INFINITY));
+		assertEquals("[1,2,3,1.5,null,null]", written());
+	}
+
+	@Test
+	public void writesArrays() {
+		writer.writeValue(new Object[] { 1, "x", new double[] { 1.5 }, new int[] { 1, 2 }, new boolean[] { true }, 'c' });
+		assertEquals("[1,\"x\",[1.5],[1,2],[true],\"c\"]", written());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnsupportedValues() {
+		writer.writeValue(new Object());
+	}
+
+	@Test
+	public void writesIdFirstAndTimestampFirstInParams() {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("states", new HashMap<String, Object>());
+		params.put("apikey", "k");
+		params.put("timestamp", 1234L);
+		writer.writeRequest(new JSONRPC2Request("pro", params, 5));
+		assertTrue(written(), written().startsWith("{\"id\":5,\"jsonrpc\":\"2.0\",\"method\":\"pro\",\"params\":{\"timestamp\":1234,"));
+	}
+
+	@Test
+	public void replacesIdOfRecord() {
+		byte[] record = JSONWriter.toRecord(request(0));
+		assertTrue(JSONWriter.isRecord(record));
+		assertTrue(writer.writeRecord(record, 42));
+		assertEquals(new String(JSONWriter.toRecord(request(42)), StandardCharsets.UTF_8), written());
+	}
+
+	@Test
+	public void doesNotCopyOtherData() {
+		byte[] data = "{\"method\":\"pro\",\"id\":1}".getBytes(StandardCharsets.UTF_8);
+		assertFalse(JSONWriter.isRecord(data));
+		assertFalse(writer.writeRecord(data, 1));
+		assertEquals(0, writer.size());
+		assertFalse(JSONWriter.isRecord("{\"id\":}".getBytes(StandardCharsets.UTF_8)));
+		assertFalse(JSONWriter.isRecord("{\"id\":\"a\"}".getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	public void keepsBufferOnReset() {
+		writer.writeString("abc");
+		byte[] buffer = writer.getBuffer();
+		writer.reset();
+		assertEquals(0, writer.size());
+		writer.writeNumber(1);
+		assertTrue(buffer == writer.getBuffer());
+		assertEquals("1", written());
+	}
+
+	private String written() {
+		return new String(writer.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static JSONRPC2Request request(int id) {
+		Map<String, Object> states = new HashMap<String, Object>();
+		states.put("soc", 55);
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("timestamp", 1234L);
+		params.put("states", states);
+		return new JSONRPC2Request("pro", params, id);
+	}
+}
@@ -0,0 +1,382 @@
+/**
+ * Copyright (c) 2015 Stefan Feilmeier <stefan.feilmeier@fenecon.de>.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package de.fenecon.fems.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the on-disk format and the recovery of {@link SegmentedLog}
+ *
+ * @author Stefan Feilmeier
+ */
+public class SegmentedLogTest {
+	private final static int SEGMENT_SIZE = 1000;
+	private final static int HEADER_SIZE = 8;
+	private final static int FRAMING = 8; // length and CRC
+
+	private Path directory;
+	private SegmentedLog log;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("segmentedlog");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if(log != null) {
+			log.close();
+		}
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for(Path file : files) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(directory);
+	}
+
+	@Test
+	public void readsRecordsInOrder() throws IOException {
+		log = open();
+		for(int i=0; i<30; i++) {
+			log.append(record(i, 100));
+		}
+		assertEquals(30, readAll().size());
+		assertNull(log.read());
+		assertFalse(log.hasUnread());
+	}
+
+	@Test
+	public void rollsOverToNewSegments() throws IOException {
+		log = open();
+		for(int i=0; i<30; i++) {
+			log.append(record(i, 100));
+		}
+		assertTrue(segmentFiles().size() > 1);
+		List<SegmentedLog.Record> records = readAll();
+		for(int i=0; i<records.size(); i++) {
+			assertArrayEquals(record(i, 100), records.get(i).getData());
+		}
+	}
+
+	@Test
+	public void ackDeletesCompletedSegments() throws IOException {
+		log = open();
+		for(int i=0; i<30; i++) {
+			log.append(record(i, 100));
+		}
+		int segments = segmentFiles().size();
+		List<SegmentedLog.Record> records = readAll();
+		log.ack(records.get(records.size() - 1).getNext());
+		assertTrue(log.isEmpty());
+		assertEquals(0, log.getUnackedSize());
+		assertEquals(1, segmentFiles().size()); // the active segment stays
+		assertTrue(segments > 1);
+	}
+
+	@Test
+	public void rewindReadsUnacknowledgedRecordsAgain() throws IOException {
+		log = open();
+		for(int i=0; i<5; i++) {
+			log.append(record(i, 10));
+		}
+		SegmentedLog.Record first = log.read();
+		log.ack(first.getNext());
+		log.read();
+		log.read();
+		log.rewind();
+		assertArrayEquals(record(1, 10), log.read().getData());
+	}
+
+	@Test
+	public void keepsRecordsAndAckPositionAfterReopen() throws IOException {
+		log = open();
+		for(int i=0; i<30; i++) {
+			log.append(record(i, 100));
+		}
+		List<SegmentedLog.Record> records = readAll();
+		log.ack(records.get(9).getNext());
+		log.close();
+		log = open();
+		List<SegmentedLog.Record> rest = readAll();
+		assertEquals(20, rest.size());
+		assertArrayEquals(record(10, 100), rest.get(0).getData());
+	}
+
+	@Test
+	public void cutsOffPartlyWrittenRecord() throws IOException {
+		log = open();
+		for(int i=0; i<3; i++) {
+			log.append(record(i, 10));
+		}
+		log.close();
+		// a record that was only partly written on power loss
+		ByteBuffer tail = ByteBuffer.allocate(FRAMING + 5);
+		tail.putInt(100);
+		appendToFile(lastSegment(), tail.array());
+		long truncated = Files.size(lastSegment()) - tail.capacity();
+		log = open();
+		assertEquals(3, readAll().size());
+		assertEquals(truncated, Files.size(lastSegment()));
+		log.append(record(3, 10)); // appends right after the last complete record
+		log.close();
+		log = open();
+		List<SegmentedLog.Record> records = readAll();
+		assertEquals(4, records.size());
+		assertArrayEquals(record(3, 10), records.get(3).getData());
+	}
+
+	@Test
+	public void findsRecordsOfSegmentsRolledAfterTheIndexWasWritten() throws IOException {
+		log = open();
+		log.append(record(0, 100));
+		Path index = directory.resolve("index");
+		Path saved = directory.resolve("index.saved");
+		Files.copy(index, saved);
+		for(int i=1; i<30; i++) {
+			log.append(record(i, 100));
+		}
+		// crash after roll() created a segment, but before the index was written
+		log = null;
+		Files.move(saved, index, StandardCopyOption.REPLACE_EXISTING);
+		log = open();
+		List<SegmentedLog.Record> records = readAll();
+		assertEquals(30, records.size());
+		for(int i=0; i<records.size(); i++) {
+			assertArrayEquals(record(i, 100), records.get(i).getData());
+		}
+	}
+
+	@Test
+	public void scansDirectoryWithoutIndex() throws IOException {
+		log = open();
+		for(int i=0; i<30; i++) {
+			log.append(record(i, 100));
+		}
+		log.close();
+		Files.delete(directory.resolve("index"));
+		log = open();
+		assertEquals(30, readAll().size());
+		assertTrue(Files.exists(directory.resolve("index")));
+	}
+
+	@Test
+	public void ignoresCorruptIndex() throws IOException {
+		log = open();
+		for(int i=0; i<30; i++) {
+			log.append(record(i, 100));
+		}
+		log.close();
+		Path index = directory.resolve("index");
+		byte[] data = Files.readAllBytes(index);
+		data[data.length / 2] ^= 0xff;
+		Files.write(index, data);
+		log = open();
+		assertEquals(30, readAll().size());
+	}
+
+	@Test
+	public void skipsListedSegmentsThatWereDeleted() throws IOException {
+		log = open();
+		for(int i=0; i<30; i++) {
+			log.append(record(i, 100));
+		}
+		log.close();
+		Files.delete(segmentFiles().get(0));
+		log = open();
+		List<SegmentedLog.Record> records = readAll();
+		assertTrue(records.size() < 30);
+		assertArrayEquals(record(29, 100), records.get(records.size() - 1).getData());
+	}
+
+	@Test
+	public void quarantinesRecordWithWrongChecksum() throws IOException {
+		log = open();
+		for(int i=0; i<3; i++) {
+			log.append(record(i, 10));
+		}
+		log.close();
+		corrupt(lastSegment(), recordOffset(1) + FRAMING + 3);
+		log = open();
+		List<SegmentedLog.Record> records = readAll();
+		assertEquals(2, records.size());
+		assertArrayEquals(record(0, 10), records.get(0).getData());
+		assertArrayEquals(record(2, 10), records.get(1).getData());
+		assertEquals(1, log.getQuarantinedCount());
+		List<Path> quarantined = quarantineFiles();
+		assertEquals(1, quarantined.size());
+		assertEquals(FRAMING + 10, Files.size(quarantined.get(0)));
+	}
+
+	@Test
+	public void skipsRestOfSegmentWithBrokenLength() throws IOException {
+		log = open();
+		for(int i=0; i<30; i++) {
+			log.append(record(i, 100));
+		}
+		log.close();
+		int perSegment = (SEGMENT_SIZE - HEADER_SIZE) / (FRAMING + 100);
+		Path first = segmentFiles().get(0);
+		ByteBuffer length = ByteBuffer.allocate(4);
+		length.putInt(Integer.MAX_VALUE);
+		try (FileChannel channel = FileChannel.open(first, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(length.array()), HEADER_SIZE + FRAMING + 100); // of the second record
+		}
+		log = open();
+		List<SegmentedLog.Record> records = readAll();
+		assertEquals(30 - perSegment + 1, records.size());
+		assertArrayEquals(record(0, 100), records.get(0).getData());
+		assertArrayEquals(record(perSegment, 100), records.get(1).getData());
+		assertEquals(1, quarantineFiles().size());
+	}
+
+	@Test
+	public void keepsOnlyTheNewestQuarantineFiles() throws IOException {
+		log = open();
+		for(int i=0; i<30; i++) {
+			log.append(record(i, 10));
+		}
+		log.close();
+		for(int i=0; i<15; i++) {
+			corrupt(lastSegment(), recordOffset(2 * i) + FRAMING);
+		}
+		log = open();
+		assertEquals(15, readAll().size());
+		assertEquals(15, log.getQuarantinedCount());
+		List<Path> quarantined = quarantineFiles();
+		assertEquals(10, quarantined.size());
+		for(Path file : quarantined) {
+			assertFalse(file.getFileName().toString().endsWith("-" + recordOffset(0) + ".bad"));
+		}
+	}
+
+	@Test
+	public void readsSegmentsWithoutChecksum() throws IOException {
+		// version 1: length prefix only
+		ByteBuffer segment = ByteBuffer.allocate(HEADER_SIZE + 2 * (4 + 10));
+		segment.putInt(0x46454d53);
+		segment.putInt(1);
+		for(int i=0; i<2; i++) {
+			segment.putInt(10);
+			segment.put(record(i, 10));
+		}
+		Files.write(directory.resolve(String.format("segment-%016d.log", 1)), segment.array());
+		log = open();
+		log.append(record(2, 10)); // goes to a new segment of the current version
+		List<SegmentedLog.Record> records = readAll();
+		assertEquals(3, records.size());
+		for(int i=0; i<records.size(); i++) {
+			assertArrayEquals(record(i, 10), records.get(i).getData());
+		}
+		assertEquals(2, segmentFiles().size());
+	}
+
+	@Test
+	public void opensEmptyDirectory() throws IOException {
+		log = open();
+		assertTrue(log.isEmpty());
+		assertNull(log.read());
+		log.close();
+		log = open();
+		assertTrue(log.isEmpty());
+	}
+
+	private SegmentedLog open() throws IOException {
+		return new SegmentedLog(directory, SEGMENT_SIZE, 0);
+	}
+
+	private List<SegmentedLog.Record> readAll() throws IOException {
+		List<SegmentedLog.Record> records = new ArrayList<SegmentedLog.Record>();
+		SegmentedLog.Record record;
+		while((record = log.read()) != null) {
+			records.add(record);
+		}
+		return records;
+	}
+
+	private List<Path> segmentFiles() throws IOException {
+		List<Path> segments = new ArrayList<Path>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.log")) {
+			for(Path file : files) {
+				segments.add(file);
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+
+	private Path lastSegment() throws IOException {
+		List<Path> segments = segmentFiles();
+		return segments.get(segments.size() - 1);
+	}
+
+	private List<Path> quarantineFiles() throws IOException {
+		List<Path> quarantined = new ArrayList<Path>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "quarantine-*.bad")) {
+			for(Path file : files) {
+				quarantined.add(file);
+			}
+		}
+		return quarantined;
+	}
+
+	/**
+	 * @return offset of a record of 10 bytes in a segment
+	 */
+	private static long recordOffset(int i) {
+		return HEADER_SIZE + i * (FRAMING + 10);
+	}
+
+	/**
+	 * Flip the bits of one byte of a file
+	 */
+	private static void corrupt(Path file, long offset) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer data = ByteBuffer.allocate(1);
+			channel.read(data, offset);
+			data.put(0, (byte)~data.get(0));
+			data.rewind();
+			channel.write(data, offset);
+		}
+	}
+
+	private static void appendToFile(Path file, byte[] data) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			channel.write(ByteBuffer.wrap(data));
+		}
+	}
+
+	private static byte[] record(int i, int length) {
+		byte[] data = new byte[length];
+		for(int j=0; j<length; j++) {
+			data[j] = (byte)(i + j);
+		}
+		return data;
+	}
+}